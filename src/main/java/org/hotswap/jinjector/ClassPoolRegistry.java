@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013-2024 the HotswapAgent authors.
+ *
+ * This file is part of HotswapAgent.
+ *
+ * JInjector is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * HotswapAgent is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with HotswapAgent. If not, see http://www.gnu.org/licenses/.
+ */
+package org.hotswap.jinjector;
+
+import org.hotswap.jinjector.javassist.ClassPool;
+import org.hotswap.jinjector.javassist.LoaderClassPath;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Long-lived class pools, one per class loader.
+ *
+ * The pools form the same parent-child hierarchy as the class loaders, so
+ * JDK and library classes are parsed once in the pool of the loader that
+ * defines them and are shared by all transformations in child loaders.
+ * Loaders are referenced weakly; the pool of an unloaded loader is dropped
+ * together with the loader.
+ */
+public class ClassPoolRegistry {
+
+    private final LoaderClassPool rootPool;
+    private final Map<ClassLoader, LoaderClassPool> pools = new WeakHashMap<>();
+
+    public ClassPoolRegistry() {
+        // JDK classes come from the process-wide read-only pool, parsed once even for several registries
+        rootPool = new LoaderClassPool(ClassPool.getPlatformPool(), ClassLoader.getPlatformClassLoader());
+    }
+
+    /**
+     * Returns the pool for the class loader, creating it and pools of all its parent loaders if needed.
+     *
+     * @param classLoader the class loader, null for the bootstrap class loader
+     * @return the class pool
+     */
+    public synchronized ClassPool getClassPool(ClassLoader classLoader) {
+        if (classLoader == null) {
+            return rootPool;
+        }
+        LoaderClassPool pool = pools.get(classLoader);
+        if (pool == null) {
+            pool = new LoaderClassPool(getClassPool(classLoader.getParent()), classLoader);
+            pools.put(classLoader, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Drops the cached CtClass of a class which is being redefined, so the next lookup reads it again.
+     *
+     * @param classLoader the defining class loader
+     * @param className the class name in internal form (with '/' separators)
+     */
+    public void invalidate(ClassLoader classLoader, String className) {
+        LoaderClassPool pool;
+        synchronized (this) {
+            pool = classLoader == null ? rootPool : pools.get(classLoader);
+        }
+        if (pool != null) {
+            pool.invalidate(className.replace('/', '.'));
+        }
+    }
+
+    private static class LoaderClassPool extends ClassPool {
+        LoaderClassPool(ClassPool parent, ClassLoader classLoader) {
+            super(parent);
+            appendClassPath(new LoaderClassPath(classLoader));
+        }
+
+        void invalidate(String className) {
+            removeCached(className);
+        }
+    }
+}
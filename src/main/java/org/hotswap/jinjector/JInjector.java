@@ -25,14 +25,25 @@ import org.hotswap.jinjector.patch.Patch;
 import org.hotswap.jinjector.patch.Transform;
 import org.hotswap.jinjector.util.Version;
 
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
-import java.lang.instrument.UnmodifiableClassException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class JInjector {
     private static AgentLogger LOGGER = AgentLogger.getLogger(JInjector.class);
     private static List<Patch> patches = new ArrayList<>();
+    private static String cacheDir;
+    private static long retransformPause;
+    private static long retransformDelay;
+    private static long transformBudget;
+    private static volatile RetransformScheduler retransformScheduler;
 
     public static void agentmain(String args, Instrumentation inst) {
         premain(args, inst);
@@ -43,39 +54,90 @@ public class JInjector {
         parseArgs(args);
 
         JInjectorTransformer transformer = new JInjectorTransformer();
+        if (cacheDir != null) {
+            try {
+                transformer.setTransformCache(new TransformCache(Paths.get(cacheDir)));
+                PlatformTypeIndex.install(Paths.get(cacheDir));
+                LOGGER.info("Using transformed class cache '{}'.", cacheDir);
+            } catch (IOException e) {
+                LOGGER.error("Unable to create transformed class cache '{}'.", e, cacheDir);
+            }
+        }
         for (Patch patch: patches) {
             for (Transform transform: patch.getTransforms()) {
                 transformer.addTransform(transform);
             }
         }
+        if (transformBudget > 0) {
+            transformer.enableAsync(instrumentation, transformBudget);
+        }
         instrumentation.addTransformer(transformer, true);
 
-        List<Class<?>> retransClasses = new ArrayList<>();
+        retransformLoadedClasses(instrumentation, transformer);
+
+        LOGGER.debug("JInjector initialized.");
+    }
+
+    /**
+     * Retransforms already loaded classes having a transform, every copy in every class loader. The patched bytes
+     * are computed in parallel in advance, so the retransform calls only pick them up.
+     */
+    private static void retransformLoadedClasses(Instrumentation instrumentation, JInjectorTransformer transformer) {
+        Map<String, List<Class<?>>> loadedClasses = new HashMap<>();
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (!clazz.isArray() && !clazz.isPrimitive()) {
+                loadedClasses.computeIfAbsent(clazz.getName().replace('.', '/'), k -> new ArrayList<>()).add(clazz);
+            }
+        }
+
+        Set<Class<?>> modifiableClasses = new LinkedHashSet<>();
         for (Patch patch: patches) {
             for (Transform transform: patch.getTransforms()) {
-                try {
-                    Class<?> clazz = Class.forName(transform.getClassName());
-                    retransClasses.add(clazz);
-                } catch (ClassNotFoundException ignore) {
+                List<Class<?>> classes = loadedClasses.get(transform.getClassName().replace('.', '/'));
+                if (classes != null) {
+                    for (Class<?> clazz : classes) {
+                        if (instrumentation.isModifiableClass(clazz)) {
+                            modifiableClasses.add(clazz);
+                        }
+                    }
                 }
             }
         }
+        if (modifiableClasses.isEmpty()) {
+            return;
+        }
+        List<Class<?>> retransClasses = new ArrayList<>(modifiableClasses);
 
-        if (!retransClasses.isEmpty()) {
-            try {
-                LOGGER.info("Retransforming {}", retransClasses);
-                instrumentation.retransformClasses(retransClasses.toArray(new Class[retransClasses.size()]));
-            } catch (UnmodifiableClassException e) {
-                LOGGER.error("Retransformation failed.", e);
-            }
+        retransClasses.parallelStream().forEach(transformer::prepareRetransform);
+
+        LOGGER.info("Retransforming {}", retransClasses);
+        RetransformScheduler scheduler = new RetransformScheduler(instrumentation, transformer,
+                retransformPause, retransformDelay);
+        scheduler.setClasses(retransClasses);
+        retransformScheduler = scheduler;
+        if (retransformPause > 0 || retransformDelay > 0) {
+            // do not block the application (or the attach) while spreading the pauses
+            scheduler.start();
+        } else {
+            scheduler.run();
         }
+    }
 
-        LOGGER.debug("JInjector initialized.");
+    /**
+     * Returns the scheduler retransforming the classes loaded before the agent, null if there were none.
+     */
+    public static RetransformScheduler getRetransformScheduler() {
+        return retransformScheduler;
     }
 
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--weave".equals(args[0])) {
+            JInjectorWeaver.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         if (args.length < 1) {
-            System.out.println("Usage: java -jar jinjector.jar <-p patch.hswp>+ <targetPid>");
+            System.out.println("Usage: java -jar jinjector.jar <-p patch.hswp>+ [-c cacheDir] [-retransformPause ms] [-retransformDelay ms] [-transformBudget ms] <targetPid>");
+            System.out.println("       java -jar jinjector.jar --weave <-p patch.hswp>+ -d outputDir <input.jar>+");
             return;
         }
         String targetPid = args[args.length-1]; // The PID of the target JVM process
@@ -107,6 +169,14 @@ public class JInjector {
                     if (patch != null) {
                         patches.add(patch);
                     }
+                } else if ("-c".equals(param)) {
+                    cacheDir = paramValue;
+                } else if ("-retransformPause".equals(param)) {
+                    retransformPause = parseMillis(param, paramValue);
+                } else if ("-retransformDelay".equals(param)) {
+                    retransformDelay = parseMillis(param, paramValue);
+                } else if ("-transformBudget".equals(param)) {
+                    transformBudget = parseMillis(param, paramValue);
                 }
             }
         } else {
@@ -125,10 +195,27 @@ public class JInjector {
                     if (patch != null) {
                         patches.add(patch);
                     }
+                } else if ("cacheDir".equals(option)) {
+                    cacheDir = optionValue;
+                } else if ("retransformPause".equals(option)) {
+                    retransformPause = parseMillis(option, optionValue);
+                } else if ("retransformDelay".equals(option)) {
+                    retransformDelay = parseMillis(option, optionValue);
+                } else if ("transformBudget".equals(option)) {
+                    transformBudget = parseMillis(option, optionValue);
                 } else {
                     LOGGER.warning("Invalid javaagent option '{}'. Argument '{}' is ignored.", option, arg);
                 }
             }
         }
     }
+
+    private static long parseMillis(String option, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Invalid value '{}' of option '{}', milliseconds expected. Option is ignored.", value, option);
+            return 0;
+        }
+    }
 }
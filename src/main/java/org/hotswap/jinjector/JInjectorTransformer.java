@@ -19,16 +19,36 @@
 package org.hotswap.jinjector;
 
 import org.hotswap.jinjector.javassist.*;
+import org.hotswap.jinjector.javassist.bytecode.ClassFile;
+import org.hotswap.jinjector.javassist.bytecode.CodeAttribute;
+import org.hotswap.jinjector.javassist.bytecode.FieldInfo;
+import org.hotswap.jinjector.javassist.bytecode.MethodInfo;
 import org.hotswap.jinjector.logging.AgentLogger;
 import org.hotswap.jinjector.patch.*;
+import org.hotswap.jinjector.util.ContentHash;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 
 /**
  * The type JInjector transformer.
@@ -37,64 +57,313 @@ public class JInjectorTransformer implements ClassFileTransformer {
 
     private static AgentLogger LOGGER = AgentLogger.getLogger(JInjectorTransformer.class);
 
+    private static final Pattern RETURN_PATTERN = Pattern.compile("\\breturn\\b");
+
+    // lookups of a class transformed asynchronously, the loading thread may not have defined it yet
+    private static final int RETRANSFORM_ATTEMPTS = 50;
+    private static final long RETRANSFORM_RETRY_MILLIS = 20;
+
     private Map<String, Transform> transforms = new HashMap<>();
+    private final ClassPoolRegistry classPoolRegistry = new ClassPoolRegistry();
+    private final FragmentCache fragmentCache = new FragmentCache(16384);
+    private final TransformMemo transformMemo = new TransformMemo(1024);
+    private TransformCache transformCache;
+    private final Map<Class<?>, PreparedRetransform> preparedRetransforms = new ConcurrentHashMap<>();
+    private Instrumentation instrumentation;
+    private ExecutorService asyncExecutor;
+    private long asyncBudgetMillis;
+    private volatile BiConsumer<String, Exception> failureHandler;
 
     public void addTransform(Transform classPatch) {
         String resClassName = classPatch.getClassName().replaceAll("\\.", "/");
         transforms.put(resClassName, classPatch);
     }
 
+    /**
+     * Sets the on-disk cache of transformed classes, null to disable it.
+     */
+    public void setTransformCache(TransformCache transformCache) {
+        this.transformCache = transformCache;
+    }
+
+    /**
+     * Sets a handler called with the class name and the cause when transforming a class fails. The class is then
+     * left unpatched, the original bytes are returned.
+     */
+    public void setFailureHandler(BiConsumer<String, Exception> failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Enables asynchronous transformation of classes being loaded. If a transformation takes more than the budget,
+     * the class is loaded unpatched and it is retransformed as soon as the transformation completes. Transforms
+     * marked onStart and transforms adding or removing members are always applied synchronously.
+     *
+     * @param instrumentation the instrumentation used for the later retransformation
+     * @param budgetMillis the time the loading thread waits for the transformation
+     */
+    public void enableAsync(Instrumentation instrumentation, long budgetMillis) {
+        this.instrumentation = instrumentation;
+        this.asyncBudgetMillis = budgetMillis;
+        this.asyncExecutor = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "JInjector transform");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Transforms a loaded class in advance from its class file, the next retransformation of the class returns
+     * the result without transforming again. Several classes can be prepared in parallel.
+     *
+     * The JVM passes bytes reconstituted from the loaded class to the retransformation, they never equal the class
+     * file. The result is used if they have the same structure (see {@link #classShape(byte[])}), so not if another
+     * agent or a redefinition changed the members of the class. Then, as for classes without a class file, the bytes
+     * passed by the JVM are transformed.
+     *
+     * @param clazz the loaded class
+     */
+    public void prepareRetransform(Class<?> clazz) {
+        String className = clazz.getName().replace('.', '/');
+        if (!transforms.containsKey(className)) {
+            return;
+        }
+        ClassLoader classLoader = clazz.getClassLoader();
+        ClassLoader resourceLoader = classLoader != null ? classLoader : ClassLoader.getPlatformClassLoader();
+        byte[] bytes;
+        try (InputStream in = resourceLoader.getResourceAsStream(className + ".class")) {
+            if (in == null) {
+                return;
+            }
+            bytes = in.readAllBytes();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to read class file of '{}'.", e, className);
+            return;
+        }
+        try {
+            byte[] result = transform(classLoader, className, clazz, clazz.getProtectionDomain(), bytes);
+            if (result != bytes) {
+                preparedRetransforms.put(clazz, new PreparedRetransform(classShape(bytes), result));
+            }
+        } catch (IOException | IllegalClassFormatException e) {
+            LOGGER.error("Transforming class '" + className + "' failed.", e);
+        }
+    }
+
+    /**
+     * Drops results of prepared retransformations which were not used.
+     */
+    public void clearPreparedRetransforms() {
+        preparedRetransforms.clear();
+    }
+
     @Override
     public byte[] transform(final ClassLoader classLoader, String className, Class<?> redefiningClass,
                             final ProtectionDomain protectionDomain, byte[] bytes) throws IllegalClassFormatException {
 
-        byte[] result = bytes;
+        if (redefiningClass != null) {
+            classPoolRegistry.invalidate(classLoader, className);
+            PreparedRetransform prepared = preparedRetransforms.remove(redefiningClass);
+            if (prepared != null && prepared.sourceShape.equals(shapeOrNull(className, bytes))) {
+                return prepared.result;
+            }
+        }
 
         Transform classTransform = transforms.get(className);
-        if (classTransform != null) {
-            ClassPool classPool = new ClassPool();
-            CtClass ctClass = null;
-            try {
-                classPool.appendSystemPath();
-                classPool.appendClassPath(new LoaderClassPath(classLoader));
-                ctClass = classPool.makeClass(new ByteArrayInputStream(bytes));
-            } catch (Exception e) {
-                LOGGER.error("Unable create CtClass for '" + className + "'.", e);
+        if (classTransform == null) {
+            return bytes;
+        }
+        if (redefiningClass == null && asyncExecutor != null && !classTransform.isOnStart()
+                && !changesSchema(classTransform)) {
+            return transformAsync(classLoader, className, classTransform, bytes);
+        }
+        return doTransform(classLoader, className, classTransform, bytes);
+    }
+
+    /**
+     * Transforms on a background thread, waiting at most the budget. If it takes longer the class is loaded
+     * unpatched and it is retransformed when the patched bytes are ready.
+     */
+    private byte[] transformAsync(ClassLoader classLoader, String className, Transform classTransform, byte[] bytes) {
+        CompletableFuture<byte[]> future = CompletableFuture.supplyAsync(
+                () -> doTransform(classLoader, className, classTransform, bytes), asyncExecutor);
+        try {
+            return future.get(asyncBudgetMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.info("Class '{}' loaded unpatched, transformation takes more than {} ms.", className, asyncBudgetMillis);
+            future.thenAcceptAsync(result -> {
+                if (result != bytes) {
+                    retransformLater(classLoader, className, bytes, result);
+                }
+            }, asyncExecutor);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.error("Transforming class '" + className + "' failed.", e.getCause());
+        }
+        return bytes;
+    }
+
+    /**
+     * Retransforms the class defined by the class loader from the bytes. The class is looked up among the classes
+     * of the loader, so loading is never triggered and a class of the same name from another loader is never
+     * retransformed. The loading thread may still be defining the class, then the lookup is repeated a few times.
+     */
+    private void retransformLater(ClassLoader classLoader, String className, byte[] bytes, byte[] result) {
+        retransformLater(classLoader, className, bytes, result, RETRANSFORM_ATTEMPTS);
+    }
+
+    private void retransformLater(ClassLoader classLoader, String className, byte[] bytes, byte[] result,
+                                  int attempts) {
+        Class<?> clazz = findDefinedClass(classLoader, className.replace('/', '.'));
+        if (clazz == null) {
+            if (attempts > 1) {
+                Executor retryExecutor = CompletableFuture.delayedExecutor(RETRANSFORM_RETRY_MILLIS,
+                        TimeUnit.MILLISECONDS, asyncExecutor);
+                retryExecutor.execute(() -> retransformLater(classLoader, className, bytes, result, attempts - 1));
+            } else {
+                LOGGER.warning("Class '{}' not retransformed, it was not defined by its class loader.", className);
             }
-            if (ctClass != null) {
-                try {
-                    for (NewField newField: classTransform.getNewFields()) {
-                        ctClass.addField(CtField.make(newField.getSrc(), ctClass));
-                    }
-                    for (NewMethod newConstructor: classTransform.getNewConstructors()) {
-                       ctClass.addConstructor(CtNewConstructor.make(newConstructor.getSrc(), ctClass));
-                    }
-                    for (NewMethod newMethod: classTransform.getNewMethods()) {
-                        ctClass.addMethod(CtNewMethod.make(newMethod.getSrc(), ctClass));
-                    }
-                    for (TransformField transfField: classTransform.getTransformFields().values()) {
-                        applyFieldTransformer(classPool, ctClass, transfField);
-                    }
-                    for (TransformConstructor transfConstructor : classTransform.getTransformConstructors().values()) {
-                        applyConstructorTransformer(classPool, ctClass, transfConstructor);
-                    }
-                    for (List<TransformMethod> tranfsMethods : classTransform.getTransformMethods().values()) {
-                        for (TransformMethod transfMethod : tranfsMethods) {
-                            applyMethodTransformer(classPool, ctClass, transfMethod);
-                        }
-                    }
-                    result = ctClass.toBytecode();
-                    ctClass.detach();
-                    LOGGER.info("Class '{}' transformed.", className);
-                } catch (Exception e) {
-                    LOGGER.error("Transforming class '" + className + "' failed.", e);
+            return;
+        }
+        try {
+            preparedRetransforms.put(clazz, new PreparedRetransform(classShape(bytes), result));
+            instrumentation.retransformClasses(clazz);
+            LOGGER.info("Class '{}' retransformed.", className);
+        } catch (Exception | LinkageError e) {
+            LOGGER.error("Retransforming class '" + className + "' failed.", e);
+        } finally {
+            preparedRetransforms.remove(clazz);
+        }
+    }
+
+    /**
+     * Digest of the structure of a class file: the class, its supertypes, its fields and its methods with the size of
+     * their code. The constant pool and the order of the members are left out, they differ between a class file and
+     * the bytes the JVM reconstitutes from the loaded class.
+     */
+    static ContentHash classShape(byte[] bytes) throws IOException {
+        ClassFile classFile = new ClassFile(bytes);
+        List<String> members = new ArrayList<>();
+        for (FieldInfo field : classFile.getFields()) {
+            members.add("F " + field.getName() + " " + field.getDescriptor() + " " + field.getAccessFlags());
+        }
+        for (MethodInfo method : classFile.getMethods()) {
+            CodeAttribute code = method.getCodeAttribute();
+            members.add("M " + method.getName() + " " + method.getDescriptor() + " " + method.getAccessFlags()
+                    + (code == null ? "" : " " + code.getCodeLength() + " " + code.getMaxStack()
+                    + " " + code.getMaxLocals()));
+        }
+        Collections.sort(members);
+        List<String> parts = new ArrayList<>();
+        parts.add(classFile.getName());
+        parts.add(String.valueOf(classFile.getAccessFlags()));
+        parts.add(String.valueOf(classFile.getSuperclass()));
+        parts.addAll(Arrays.asList(classFile.getInterfaces()));
+        parts.add("");
+        parts.addAll(members);
+        return ContentHash.of(new byte[0], parts);
+    }
+
+    private static ContentHash shapeOrNull(String className, byte[] bytes) {
+        try {
+            return classShape(bytes);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Unable to read structure of class '{}'.", e, className);
+            return null;
+        }
+    }
+
+    private Class<?> findDefinedClass(ClassLoader classLoader, String name) {
+        for (Class<?> clazz : instrumentation.getInitiatedClasses(classLoader)) {
+            if (clazz.getClassLoader() == classLoader && clazz.getName().equals(name)) {
+                return clazz;
+            }
+        }
+        return null;
+    }
+
+    // a retransformation cannot add or remove members, such transforms must be applied when the class is loaded
+    private static boolean changesSchema(Transform classTransform) {
+        return !classTransform.getNewFields().isEmpty() || !classTransform.getNewConstructors().isEmpty()
+                || !classTransform.getNewMethods().isEmpty() || !classTransform.getTransformFields().isEmpty();
+    }
+
+    private byte[] doTransform(ClassLoader classLoader, String className, Transform classTransform, byte[] bytes) {
+        byte[] result = bytes;
+
+        ContentHash cacheKey = null;
+        if (transformCache != null) {
+            cacheKey = transformCache.key(bytes, classTransform);
+            byte[] cached = transformCache.get(cacheKey);
+            if (cached != null) {
+                LOGGER.info("Class '{}' transformed (cached).", className);
+                return cached;
+            }
+        }
+        ClassPool classPool = classPoolRegistry.getClassPool(classLoader);
+        ContentHash bytesHash = ContentHash.of(bytes);
+        byte[] memoized = transformMemo.get(classTransform, bytesHash, classPool);
+        if (memoized != null) {
+            LOGGER.info("Class '{}' transformed (same as in another class loader).", className);
+            return memoized;
+        }
+        CtClass ctClass = null;
+        try {
+            // not checked against the parent pools, JDK classes are frozen in the shared platform pool;
+            // method bodies stay slices of the bytes until a patch touches them
+            ctClass = classPool.makeClass(new ClassFile(bytes), false);
+        } catch (Exception e) {
+            LOGGER.error("Unable create CtClass for '" + className + "'.", e);
+            transformFailed(className, e);
+        }
+        if (ctClass != null) {
+            try {
+                // stack maps of all patched methods are rebuilt once in toBytecode()
+                ctClass.deferStackMaps(true);
+                for (NewField newField: classTransform.getNewFields()) {
+                    ctClass.addField(CtField.make(newField.getSrc(), ctClass));
                 }
+                for (NewMethod newConstructor: classTransform.getNewConstructors()) {
+                   ctClass.addConstructor(CtNewConstructor.make(newConstructor.getSrc(), ctClass));
+                }
+                for (NewMethod newMethod: classTransform.getNewMethods()) {
+                    ctClass.addMethod(CtNewMethod.make(newMethod.getSrc(), ctClass));
+                }
+                for (TransformField transfField: classTransform.getTransformFields().values()) {
+                    applyFieldTransformer(classPool, ctClass, transfField);
+                }
+                for (TransformConstructor transfConstructor : classTransform.getTransformConstructors().values()) {
+                    applyConstructorTransformer(classPool, ctClass, transfConstructor);
+                }
+                for (List<TransformMethod> tranfsMethods : classTransform.getTransformMethods().values()) {
+                    applyMethodTransformer(classPool, ctClass, tranfsMethods);
+                }
+                result = ctClass.toBytecode();
+                LOGGER.info("Class '{}' transformed.", className);
+                if (cacheKey != null) {
+                    transformCache.put(cacheKey, result);
+                }
+                transformMemo.put(classTransform, bytesHash, ctClass, result);
+            } catch (Exception e) {
+                LOGGER.error("Transforming class '" + className + "' failed.", e);
+                transformFailed(className, e);
+            } finally {
+                // the pool is shared, never leave the patched (or partially patched) class in it
+                ctClass.detach();
             }
         }
 
         return result;
     }
 
+    private void transformFailed(String className, Exception e) {
+        BiConsumer<String, Exception> handler = failureHandler;
+        if (handler != null) {
+            handler.accept(className, e);
+        }
+    }
 
     private void applyFieldTransformer(ClassPool classPool, CtClass ctClass, TransformField transfField) throws NotFoundException {
         CtField ctField = ctClass.getDeclaredField(transfField.getFieldName());
@@ -124,54 +393,93 @@ public class JInjectorTransformer implements ClassFileTransformer {
     }
 
     private void doApplyConstructorTransformer(CtConstructor ctConstructor, TransformConstructor tranfsConstructor) throws CannotCompileException {
-        for (TransformMethodFragment patchFragment : tranfsConstructor.getPatchFragments()) {
-            switch (patchFragment.getTransformType()) {
-                case INSERT_BEFORE: {
-                    ctConstructor.insertBefore(patchFragment.getSrc());
-                }
-                break;
-                case INSERT_AFTER: {
-                    ctConstructor.insertAfter(patchFragment.getSrc());
-                }
-                break;
-                case SET_BODY: {
-                    ctConstructor.setBody(patchFragment.getSrc());
-                }
-                break;
-            }
-        }
+        applyPatchFragments(ctConstructor, tranfsConstructor.getPatchFragments());
     }
 
-    private void applyMethodTransformer(ClassPool classPool, CtClass ctClass, TransformMethod transfMethod) throws NotFoundException, CannotCompileException {
+    private void applyMethodTransformer(ClassPool classPool, CtClass ctClass, List<TransformMethod> transfMethods) throws NotFoundException, CannotCompileException {
+        // all transforms in the group have the same method signature, so they select the same methods
+        TransformMethod transfMethod = transfMethods.get(0);
+        List<TransformMethodFragment> patchFragments = new ArrayList<>();
+        for (TransformMethod method : transfMethods) {
+            patchFragments.addAll(method.getPatchFragments());
+        }
         if (transfMethod.isAllMethods()) {
             CtMethod[] declaredMethods = ctClass.getDeclaredMethods(transfMethod.getMethodName());
             for (CtMethod ctMethod: declaredMethods) {
-                doApplyMethodTransformer(ctMethod, transfMethod);
+                applyPatchFragments(ctMethod, patchFragments);
             }
         } else {
             CtClass[] params = classNamesToCtClasses(classPool, transfMethod.getParamClasses());
             CtMethod ctMethod = ctClass.getDeclaredMethod(transfMethod.getMethodName(), params);
-            doApplyMethodTransformer(ctMethod, transfMethod);
+            applyPatchFragments(ctMethod, patchFragments);
         }
     }
 
-    private void doApplyMethodTransformer(CtMethod ctMethod, TransformMethod transfMethod) throws CannotCompileException {
-        for (TransformMethodFragment patchFragment : transfMethod.getPatchFragments()) {
+    /**
+     * Applies the fragments in order. Consecutive before and after fragments are fused, so they are compiled together
+     * and the method is analyzed only once. A fragment containing return is not fused, a return in the fused code
+     * would skip the rest of it instead of passing through the after fragments.
+     */
+    private void applyPatchFragments(CtBehavior ctBehavior, List<TransformMethodFragment> patchFragments) throws CannotCompileException {
+        List<String> before = new ArrayList<>();
+        List<String> after = new ArrayList<>();
+        for (TransformMethodFragment patchFragment : patchFragments) {
+            String src = patchFragment.getSrc();
             switch (patchFragment.getTransformType()) {
                 case INSERT_BEFORE: {
-                    ctMethod.insertBefore(patchFragment.getSrc());
+                    if (RETURN_PATTERN.matcher(src).find()) {
+                        insertFused(ctBehavior, before, after);
+                        fragmentCache.insertBefore(ctBehavior, src);
+                    } else {
+                        before.add(src);
+                    }
                 }
                 break;
                 case INSERT_AFTER: {
-                    ctMethod.insertAfter(patchFragment.getSrc());
+                    if (RETURN_PATTERN.matcher(src).find()) {
+                        insertFused(ctBehavior, before, after);
+                        fragmentCache.insertAfter(ctBehavior, src);
+                    } else {
+                        after.add(src);
+                    }
                 }
                 break;
                 case SET_BODY: {
-                    ctMethod.setBody(patchFragment.getSrc());
+                    // the new body replaces everything inserted so far
+                    before.clear();
+                    after.clear();
+                    fragmentCache.setBody(ctBehavior, src);
                 }
                 break;
             }
         }
+        insertFused(ctBehavior, before, after);
+    }
+
+    private void insertFused(CtBehavior ctBehavior, List<String> before, List<String> after) throws CannotCompileException {
+        if (before.isEmpty() && after.isEmpty()) {
+            return;
+        }
+        // each insertBefore() goes in front of the previous one, so the last fragment runs first
+        Collections.reverse(before);
+        fragmentCache.insertAround(ctBehavior, fuse(before), fuse(after));
+        before.clear();
+        after.clear();
+    }
+
+    private static String fuse(List<String> fragments) {
+        if (fragments.isEmpty()) {
+            return null;
+        }
+        if (fragments.size() == 1) {
+            return fragments.get(0);
+        }
+        StringBuilder result = new StringBuilder("{");
+        for (String src : fragments) {
+            // own block for each fragment, so their local variables do not clash
+            result.append('{').append(src).append("}\n");
+        }
+        return result.append('}').toString();
     }
 
     private CtClass[] classNamesToCtClasses(ClassPool classPool, List<String> classNames) throws NotFoundException {
@@ -181,4 +489,15 @@ public class JInjectorTransformer implements ClassFileTransformer {
         }
         return result;
     }
+
+    private static class PreparedRetransform {
+        // structure of the bytes the result was transformed from
+        final ContentHash sourceShape;
+        final byte[] result;
+
+        PreparedRetransform(ContentHash sourceShape, byte[] result) {
+            this.sourceShape = sourceShape;
+            this.result = result;
+        }
+    }
 }
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2013-2024 the HotswapAgent authors.
+ *
+ * This file is part of HotswapAgent.
+ *
+ * JInjector is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * HotswapAgent is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with HotswapAgent. If not, see http://www.gnu.org/licenses/.
+ */
+package org.hotswap.jinjector;
+
+import org.hotswap.jinjector.logging.AgentLogger;
+import org.hotswap.jinjector.parser.PatchParser;
+import org.hotswap.jinjector.patch.Patch;
+import org.hotswap.jinjector.patch.Transform;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Ahead-of-time weaving. Applies patches to classes in jar files and writes patched copies of the jars, so the
+ * application can run with pre-woven classes and without the agent.
+ *
+ * Types referenced by the patches are resolved from the input jars and the platform classes. A jar is processed
+ * in windows of entries, classes of a window are transformed in parallel and written before the next window is read,
+ * so memory use does not grow with the size of the jar. The output jar keeps the order of entries of the input jar.
+ *
+ * Woven classes no longer match the signatures of a signed jar, therefore signature files are not copied and
+ * the output jar is unsigned.
+ *
+ * If a class of a jar cannot be transformed, the output jar is not written, see {@link #getFailedClasses()}.
+ */
+public class JInjectorWeaver {
+    private static AgentLogger LOGGER = AgentLogger.getLogger(JInjectorWeaver.class);
+
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
+    private static final String META_INF = "META-INF/";
+    private static final String[] SIGNATURE_SUFFIXES = {".SF", ".RSA", ".DSA", ".EC"};
+
+    private static final String USAGE =
+            "Usage: java -jar jinjector.jar --weave <-p patch.hswp>+ -d outputDir <input.jar>+";
+
+    /** Exit status if some classes could not be transformed. */
+    public static final int EXIT_FAILED = 1;
+    /** Exit status if the command line or a patch is invalid. */
+    public static final int EXIT_USAGE = 2;
+
+    // classes per fork/join task
+    private static final int BATCH_SIZE = 16;
+
+    // entries read into memory at once
+    private static final int WINDOW_SIZE = 1024;
+
+    private final JInjectorTransformer transformer = new JInjectorTransformer();
+    private final ForkJoinPool forkJoinPool;
+    private final List<ClassTime> classTimes = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> failedClasses = Collections.synchronizedList(new ArrayList<>());
+
+    public JInjectorWeaver(ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+        transformer.setFailureHandler((className, e) -> failedClasses.add(className));
+    }
+
+    public void addPatch(Patch patch) {
+        for (Transform transform : patch.getTransforms()) {
+            transformer.addTransform(transform);
+        }
+    }
+
+    /**
+     * Weaves the input jars.
+     *
+     * @param inputJars the input jars, they are also the class path used to resolve types
+     * @param outputDir the directory for the patched jars, file names are the same as of the input jars
+     * @throws IOException on read or write error
+     */
+    public void weave(List<Path> inputJars, Path outputDir) throws IOException {
+        Map<Path, Path> inputByName = new HashMap<>();
+        for (Path inputJar : inputJars) {
+            Path other = inputByName.put(inputJar.getFileName(), inputJar);
+            if (other != null) {
+                throw new IOException("Input jars '" + other + "' and '" + inputJar
+                        + "' would be written to the same output jar.");
+            }
+        }
+        Files.createDirectories(outputDir);
+        URL[] urls = new URL[inputJars.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = inputJars.get(i).toUri().toURL();
+        }
+        try (URLClassLoader classLoader = new URLClassLoader(urls, ClassLoader.getPlatformClassLoader())) {
+            for (Path inputJar : inputJars) {
+                Path outputJar = outputDir.resolve(inputJar.getFileName());
+                if (Files.exists(outputJar) && Files.isSameFile(inputJar, outputJar)) {
+                    throw new IOException("Output jar '" + outputJar + "' would overwrite the input jar.");
+                }
+                int failedCount = failedClasses.size();
+                try {
+                    weaveJar(classLoader, inputJar, outputJar);
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(outputJar);
+                    throw e;
+                }
+                if (failedClasses.size() > failedCount) {
+                    // do not leave a jar with unpatched classes behind
+                    Files.delete(outputJar);
+                    LOGGER.error("Weaving jar '{}' failed, {} classes not transformed, '{}' not written.", inputJar,
+                            failedClasses.size() - failedCount, outputJar);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns names of classes which could not be transformed. The output jars containing them were not written.
+     */
+    public List<String> getFailedClasses() {
+        synchronized (failedClasses) {
+            return new ArrayList<>(failedClasses);
+        }
+    }
+
+    /**
+     * Returns times of transformed classes, the slowest first.
+     */
+    public List<ClassTime> getClassTimes() {
+        List<ClassTime> result = new ArrayList<>(classTimes);
+        result.sort(Comparator.comparingLong(ClassTime::getNanos).reversed());
+        return result;
+    }
+
+    private void weaveJar(ClassLoader classLoader, Path inputJar, Path outputJar) throws IOException {
+        try (ZipFile zipFile = new ZipFile(inputJar.toFile());
+             ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(outputJar))) {
+            List<ZipEntry> entries = new ArrayList<>(WINDOW_SIZE);
+            List<byte[]> classBytes = new ArrayList<>(WINDOW_SIZE);
+            boolean signed = false;
+            for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (isSignature(entry)) {
+                    signed = true;
+                    continue;
+                }
+                entries.add(entry);
+                classBytes.add(isClass(entry) ? readEntry(zipFile, entry) : null);
+                if (entries.size() == WINDOW_SIZE) {
+                    weaveWindow(classLoader, zipFile, entries, classBytes, out);
+                }
+            }
+            weaveWindow(classLoader, zipFile, entries, classBytes, out);
+            if (signed) {
+                LOGGER.warning("Jar '{}' is signed, signature files are not copied to '{}'.", inputJar, outputJar);
+            }
+            LOGGER.info("Jar '{}' woven to '{}'.", inputJar, outputJar);
+        }
+    }
+
+    private void weaveWindow(ClassLoader classLoader, ZipFile zipFile, List<ZipEntry> entries,
+                             List<byte[]> classBytes, ZipOutputStream out) throws IOException {
+        forkJoinPool.invoke(new WeaveTask(classLoader, entries, classBytes, 0, entries.size()));
+
+        for (int i = 0; i < entries.size(); i++) {
+            ZipEntry entry = entries.get(i);
+            ZipEntry outEntry = new ZipEntry(entry.getName());
+            outEntry.setTime(entry.getTime());
+            outEntry.setComment(entry.getComment());
+            outEntry.setExtra(entry.getExtra());
+            out.putNextEntry(outEntry);
+            byte[] bytes = classBytes.get(i);
+            if (bytes != null) {
+                out.write(bytes);
+            } else {
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    in.transferTo(out);
+                }
+            }
+            out.closeEntry();
+        }
+        entries.clear();
+        classBytes.clear();
+    }
+
+    private void weaveClass(ClassLoader classLoader, String entryName, List<byte[]> classBytes, int index) {
+        String className = entryName.substring(0, entryName.length() - CLASS_SUFFIX.length());
+        if (className.startsWith(VERSIONS_PREFIX)) {
+            className = className.substring(className.indexOf('/', VERSIONS_PREFIX.length()) + 1);
+        }
+        byte[] bytes = classBytes.get(index);
+        long start = System.nanoTime();
+        byte[] result;
+        try {
+            result = transformer.transform(classLoader, className, null, null, bytes);
+        } catch (IllegalClassFormatException e) {
+            LOGGER.error("Weaving class '{}' failed.", e, className);
+            failedClasses.add(className);
+            return;
+        }
+        if (result != bytes) {
+            classTimes.add(new ClassTime(entryName, System.nanoTime() - start));
+            classBytes.set(index, result);
+        }
+    }
+
+    private static boolean isClass(ZipEntry entry) {
+        String name = entry.getName();
+        return !entry.isDirectory() && name.endsWith(CLASS_SUFFIX) && !name.endsWith("module-info" + CLASS_SUFFIX);
+    }
+
+    private static boolean isSignature(ZipEntry entry) {
+        String name = entry.getName();
+        if (!name.startsWith(META_INF) || name.indexOf('/', META_INF.length()) >= 0) {
+            return false;
+        }
+        String upperName = name.toUpperCase(Locale.ROOT);
+        for (String suffix : SIGNATURE_SUFFIXES) {
+            if (upperName.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private class WeaveTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ClassLoader classLoader;
+        private final List<ZipEntry> entries;
+        private final List<byte[]> classBytes;
+        private final int from;
+        private final int to;
+
+        WeaveTask(ClassLoader classLoader, List<ZipEntry> entries, List<byte[]> classBytes, int from, int to) {
+            this.classLoader = classLoader;
+            this.entries = entries;
+            this.classBytes = classBytes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SIZE) {
+                for (int i = from; i < to; i++) {
+                    if (classBytes.get(i) != null) {
+                        weaveClass(classLoader, entries.get(i).getName(), classBytes, i);
+                    }
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                ForkJoinTask.invokeAll(new WeaveTask(classLoader, entries, classBytes, from, mid),
+                        new WeaveTask(classLoader, entries, classBytes, mid, to));
+            }
+        }
+    }
+
+    public static class ClassTime {
+        private final String name;
+        private final long nanos;
+
+        ClassTime(String name, long nanos) {
+            this.name = name;
+            this.nanos = nanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * Command line entry, exits with a non-zero status on failure.
+     *
+     * @param args &lt;-p patch.hswp&gt;+ -d outputDir inputJar+
+     */
+    public static void main(String[] args) throws Exception {
+        int status = run(args);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Weaves the jars given on the command line.
+     *
+     * @param args &lt;-p patch.hswp&gt;+ -d outputDir inputJar+
+     * @return the exit status, 0 on success, {@link #EXIT_FAILED} if some classes could not be transformed,
+     *         {@link #EXIT_USAGE} if the command line or a patch is invalid
+     * @throws IOException on read or write error
+     */
+    public static int run(String[] args) throws IOException {
+        List<Patch> patches = new ArrayList<>();
+        List<Path> inputJars = new ArrayList<>();
+        Path outputDir = null;
+        for (int i = 0; i < args.length; i++) {
+            if ("-p".equals(args[i]) && i + 1 < args.length) {
+                Patch patch = new PatchParser().parseFile(args[++i]);
+                if (patch == null) {
+                    return EXIT_USAGE;
+                }
+                patches.add(patch);
+            } else if ("-d".equals(args[i]) && i + 1 < args.length) {
+                outputDir = Paths.get(args[++i]);
+            } else if (args[i].startsWith("-")) {
+                System.out.println("Unknown option '" + args[i] + "'.");
+                System.out.println(USAGE);
+                return EXIT_USAGE;
+            } else {
+                inputJars.add(Paths.get(args[i]));
+            }
+        }
+        if (patches.isEmpty() || outputDir == null || inputJars.isEmpty()) {
+            System.out.println(USAGE);
+            return EXIT_USAGE;
+        }
+
+        JInjectorWeaver weaver = new JInjectorWeaver(ForkJoinPool.commonPool());
+        for (Patch patch : patches) {
+            weaver.addPatch(patch);
+        }
+        long start = System.nanoTime();
+        weaver.weave(inputJars, outputDir);
+        long total = System.nanoTime() - start;
+
+        for (ClassTime classTime : weaver.getClassTimes()) {
+            System.out.printf("%10.3f ms  %s%n", classTime.getNanos() / 1e6, classTime.getName());
+        }
+        System.out.printf("%d classes woven in %.3f ms.%n", weaver.getClassTimes().size(), total / 1e6);
+        List<String> failedClasses = weaver.getFailedClasses();
+        if (!failedClasses.isEmpty()) {
+            System.out.printf("%d classes failed: %s%n", failedClasses.size(), failedClasses);
+            return EXIT_FAILED;
+        }
+        return 0;
+    }
+}
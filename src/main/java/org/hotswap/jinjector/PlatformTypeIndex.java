@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013-2024 the HotswapAgent authors.
+ *
+ * This file is part of HotswapAgent.
+ *
+ * JInjector is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * HotswapAgent is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with HotswapAgent. If not, see http://www.gnu.org/licenses/.
+ */
+package org.hotswap.jinjector;
+
+import org.hotswap.jinjector.javassist.ClassPool;
+import org.hotswap.jinjector.javassist.TypeIndex;
+import org.hotswap.jinjector.logging.AgentLogger;
+import org.hotswap.jinjector.util.Version;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Index of the JDK types resolved while compiling patches, kept in the cache directory.
+ *
+ * The index is loaded into the shared platform class pool at startup, so JDK classes referenced by the patches
+ * are read from stripped, declaration-only class files instead of being parsed from the runtime image. When the
+ * JVM exits and patches resolved JDK classes missing from the index, the index is written again with them added -
+ * similar to dumping a class data sharing archive at exit. The index is keyed by the JDK location and version, so
+ * another JDK ignores it and overwrites it at exit.
+ */
+public class PlatformTypeIndex {
+
+    private static AgentLogger LOGGER = AgentLogger.getLogger(PlatformTypeIndex.class);
+
+    private static final String FILE_NAME = "platform-types.idx";
+
+    private PlatformTypeIndex() {
+    }
+
+    /**
+     * Loads the index from the cache directory, if present, and schedules writing it at exit.
+     *
+     * @param cacheDir the cache directory
+     */
+    public static void install(Path cacheDir) {
+        Path file = cacheDir.resolve(FILE_NAME);
+        String key = key();
+        TypeIndex index = null;
+        try {
+            index = TypeIndex.open(file.toFile(), key);
+            if (index != null) {
+                ClassPool.setPlatformTypeIndex(index);
+                LOGGER.debug("Loaded index of {} JDK types '{}'.", index.size(), file);
+            }
+        } catch (NoSuchFileException e) {
+            // written at exit
+        } catch (IOException e) {
+            LOGGER.warning("Unable to read JDK type index '{}'.", e, file);
+        }
+
+        TypeIndex loaded = index;
+        Thread writer = new Thread(() -> write(file, key, loaded), "JInjector type index writer");
+        Runtime.getRuntime().addShutdownHook(writer);
+    }
+
+    private static void write(Path file, String key, TypeIndex loaded) {
+        ClassPool pool = ClassPool.getPlatformPool();
+        if (loaded != null && loaded.containsAll(pool)) {
+            return;
+        }
+        Path tmpFile = null;
+        try {
+            tmpFile = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+            int count;
+            try (OutputStream out = Files.newOutputStream(tmpFile)) {
+                count = TypeIndex.write(out, key, pool, loaded);
+            }
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            LOGGER.debug("Written index of {} JDK types '{}'.", count, file);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warning("Unable to write JDK type index '{}'.", e, file);
+            if (tmpFile != null) {
+                try {
+                    Files.deleteIfExists(tmpFile);
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    // a different JDK or agent gives a different key, the agent version covers changes of the stripped form
+    private static String key() {
+        return Version.version() + "|" + System.getProperty("java.home") + "|" + System.getProperty("java.runtime.version");
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013-2024 the HotswapAgent authors.
+ *
+ * This file is part of HotswapAgent.
+ *
+ * JInjector is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * HotswapAgent is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with HotswapAgent. If not, see http://www.gnu.org/licenses/.
+ */
+package org.hotswap.jinjector;
+
+import org.hotswap.jinjector.logging.AgentLogger;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransforms classes in chunks to keep safepoint pauses short.
+ *
+ * With a pause budget, the chunk size is adapted after each chunk, so a single retransformClasses() call takes about
+ * the budget. Without a budget the chunks have a fixed size. Chunks can be separated by a delay, letting
+ * the application run (and recompile deoptimized code) between the pauses. Classes which are on the stack of some
+ * thread are retransformed first.
+ *
+ * The progress can be watched while the scheduler runs in the background, see
+ * {@link JInjector#getRetransformScheduler()}.
+ */
+public class RetransformScheduler {
+    private static AgentLogger LOGGER = AgentLogger.getLogger(RetransformScheduler.class);
+
+    private static final int DEFAULT_CHUNK_SIZE = 64;
+    private static final int INITIAL_CHUNK_SIZE = 4;
+    private static final int MAX_CHUNK_SIZE = 1024;
+
+    private final Instrumentation instrumentation;
+    private final JInjectorTransformer transformer;
+    private final long pauseBudgetNanos;
+    private final long chunkDelayMillis;
+
+    private final List<Class<?>> classes = new ArrayList<>();
+    private volatile int doneCount;
+    private volatile int failedCount;
+    private volatile boolean finished;
+
+    /**
+     * @param instrumentation the instrumentation
+     * @param transformer the transformer, its unused prepared retransformations are dropped at the end
+     * @param pauseBudgetMillis target duration of one retransformClasses() call, 0 for chunks of fixed size
+     * @param chunkDelayMillis delay between chunks
+     */
+    public RetransformScheduler(Instrumentation instrumentation, JInjectorTransformer transformer,
+                                long pauseBudgetMillis, long chunkDelayMillis) {
+        this.instrumentation = instrumentation;
+        this.transformer = transformer;
+        this.pauseBudgetNanos = TimeUnit.MILLISECONDS.toNanos(pauseBudgetMillis);
+        this.chunkDelayMillis = chunkDelayMillis;
+    }
+
+    /**
+     * Sets the classes to retransform, hot classes are moved to the front.
+     */
+    public void setClasses(List<Class<?>> classes) {
+        this.classes.clear();
+        this.classes.addAll(classes);
+        Map<String, Integer> stackCounts = new HashMap<>();
+        for (StackTraceElement[] stackTrace : Thread.getAllStackTraces().values()) {
+            for (StackTraceElement element : stackTrace) {
+                stackCounts.merge(element.getClassName(), 1, Integer::sum);
+            }
+        }
+        // stable sort, order of transforms is kept for classes which are not running
+        this.classes.sort(Comparator.comparingInt((Class<?> c) -> stackCounts.getOrDefault(c.getName(), 0)).reversed());
+    }
+
+    /**
+     * Retransforms all classes in the current thread.
+     */
+    public void run() {
+        int chunkSize = pauseBudgetNanos > 0 ? INITIAL_CHUNK_SIZE : DEFAULT_CHUNK_SIZE;
+        int total = classes.size();
+        try {
+            for (int from = 0; from < total; ) {
+                List<Class<?>> chunk = classes.subList(from, Math.min(from + chunkSize, total));
+                long start = System.nanoTime();
+                try {
+                    instrumentation.retransformClasses(chunk.toArray(new Class<?>[0]));
+                } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+                    LOGGER.error("Retransformation of {} failed.", e, chunk);
+                    failedCount += chunk.size();
+                }
+                long elapsed = System.nanoTime() - start;
+                from += chunk.size();
+                doneCount = from;
+                LOGGER.info("Retransformed {}/{} classes, last chunk of {} took {} ms.", from, total, chunk.size(),
+                        TimeUnit.NANOSECONDS.toMillis(elapsed));
+
+                if (pauseBudgetNanos > 0) {
+                    long perClass = Math.max(1, elapsed / chunk.size());
+                    // grow at most twice per chunk, one slow class should not be extrapolated too far
+                    chunkSize = (int) Math.max(1, Math.min(Math.min(pauseBudgetNanos / perClass, chunkSize * 2L),
+                            MAX_CHUNK_SIZE));
+                }
+                if (chunkDelayMillis > 0 && from < total) {
+                    Thread.sleep(chunkDelayMillis);
+                }
+            }
+            LOGGER.info("Retransformation finished, {} classes retransformed, {} failed.", total - failedCount,
+                    failedCount);
+        } catch (InterruptedException e) {
+            LOGGER.warning("Retransformation interrupted after {}/{} classes.", doneCount, total);
+            Thread.currentThread().interrupt();
+        } finally {
+            transformer.clearPreparedRetransforms();
+            finished = true;
+        }
+    }
+
+    /**
+     * Retransforms all classes in a background daemon thread.
+     *
+     * @return the started thread
+     */
+    public Thread start() {
+        Thread thread = new Thread(this::run, "JInjector retransform");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public int getTotalCount() {
+        return classes.size();
+    }
+
+    public int getDoneCount() {
+        return doneCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+}
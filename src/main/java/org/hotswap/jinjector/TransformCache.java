@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013-2024 the HotswapAgent authors.
+ *
+ * This file is part of HotswapAgent.
+ *
+ * JInjector is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * HotswapAgent is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with HotswapAgent. If not, see http://www.gnu.org/licenses/.
+ */
+package org.hotswap.jinjector;
+
+import org.hotswap.jinjector.logging.AgentLogger;
+import org.hotswap.jinjector.patch.*;
+import org.hotswap.jinjector.util.ContentHash;
+import org.hotswap.jinjector.util.Version;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-disk cache of transformed class bytes.
+ *
+ * Entries are addressed by a digest of the original class bytes, the transform and the agent version, so an entry
+ * never needs to be invalidated - a changed class, patch or agent simply gives another key. Other classes used while
+ * compiling the patch (e.g. types referenced by a fragment) are not part of the key, delete the directory when
+ * the application libraries are replaced in incompatible way.
+ *
+ * Entries are written to a temporary file and renamed, so concurrent JVMs sharing the directory never read
+ * a partially written entry.
+ */
+public class TransformCache {
+
+    private static AgentLogger LOGGER = AgentLogger.getLogger(TransformCache.class);
+
+    private static final String SUFFIX = ".class";
+
+    private final Path dir;
+    private final String version;
+
+    public TransformCache(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.version = Version.version();
+    }
+
+    /**
+     * Returns the key of the class transformed by the transform.
+     *
+     * @param bytes the original class bytes
+     * @param transform the transform
+     * @return the key
+     */
+    public ContentHash key(byte[] bytes, Transform transform) {
+        List<String> parts = new ArrayList<>();
+        parts.add(version);
+        describe(transform, parts);
+        return ContentHash.of(bytes, parts);
+    }
+
+    /**
+     * Returns cached transformed bytes.
+     *
+     * @param key the key
+     * @return the bytes or null if the class is not cached
+     */
+    public byte[] get(ContentHash key) {
+        Path file = dir.resolve(key + SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] result = new byte[buffer.remaining()];
+            buffer.get(result);
+            return result;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOGGER.warning("Unable to read cached class '{}'.", e, file);
+            return null;
+        }
+    }
+
+    /**
+     * Stores transformed bytes.
+     *
+     * @param key the key
+     * @param bytes the transformed bytes
+     */
+    public void put(ContentHash key, byte[] bytes) {
+        Path file = dir.resolve(key + SUFFIX);
+        Path tmpFile = null;
+        try {
+            tmpFile = Files.createTempFile(dir, key.toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Unable to write cached class '{}'.", e, file);
+            if (tmpFile != null) {
+                try {
+                    Files.deleteIfExists(tmpFile);
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    // everything the transformer reads from the transform, in the order it applies it
+    private static void describe(Transform transform, List<String> parts) {
+        parts.add(transform.getClassName());
+        for (NewField newField : transform.getNewFields()) {
+            parts.add("newField");
+            parts.add(newField.getSrc());
+        }
+        for (NewMethod newConstructor : transform.getNewConstructors()) {
+            parts.add("newConstructor");
+            parts.add(newConstructor.getSrc());
+        }
+        for (NewMethod newMethod : transform.getNewMethods()) {
+            parts.add("newMethod");
+            parts.add(newMethod.getSrc());
+        }
+        for (TransformField transformField : transform.getTransformFields().values()) {
+            parts.add("field");
+            parts.add(transformField.getFieldName());
+            parts.add(transformField.getFieldTransformType().name());
+            parts.add(String.valueOf(transformField.getRenameTo()));
+        }
+        for (TransformConstructor transformConstructor : transform.getTransformConstructors().values()) {
+            describe("constructor", transformConstructor, parts);
+        }
+        for (List<TransformMethod> transformMethods : transform.getTransformMethods().values()) {
+            for (TransformMethod transformMethod : transformMethods) {
+                describe("method", transformMethod, parts);
+            }
+        }
+    }
+
+    private static void describe(String kind, TransformMethodBase transformMethod, List<String> parts) {
+        parts.add(kind);
+        parts.add(transformMethod.getMethodSignature());
+        for (TransformMethodFragment fragment : transformMethod.getPatchFragments()) {
+            parts.add(fragment.getTransformType().name());
+            parts.add(fragment.getSrc());
+        }
+    }
+}
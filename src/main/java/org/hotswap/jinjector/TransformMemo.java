@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013-2024 the HotswapAgent authors.
+ *
+ * This file is part of HotswapAgent.
+ *
+ * JInjector is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the
+ * Free Software Foundation, either version 2 of the License, or (at your
+ * option) any later version.
+ *
+ * HotswapAgent is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with HotswapAgent. If not, see http://www.gnu.org/licenses/.
+ */
+package org.hotswap.jinjector;
+
+import org.hotswap.jinjector.javassist.ClassPool;
+import org.hotswap.jinjector.javassist.CtClass;
+import org.hotswap.jinjector.javassist.NotFoundException;
+import org.hotswap.jinjector.patch.Transform;
+import org.hotswap.jinjector.util.ContentHash;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * In-memory memo of transformed classes, shared by all class loaders.
+ *
+ * The same library class is often loaded by many class loaders (e.g. one per web application). The result
+ * of a transformation depends on the original bytes and the transform, and also on the types the patched class
+ * refers to, which are resolved by the class pool of the loader. Therefore each entry records where the referenced
+ * types were found and a digest of their class files; the memoized bytes are reused in another loader only if
+ * all referenced types resolve to identical class files there.
+ *
+ * The memo holds at most the given number of classes and discards the least recently used ones. It is thread-safe.
+ */
+public class TransformMemo {
+
+    private final Map<List<Object>, Entry> entries;
+
+    public TransformMemo(final int maxEntries) {
+        entries = new LinkedHashMap<List<Object>, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the memoized transformed bytes if they are valid in the class pool.
+     *
+     * @param transform the transform
+     * @param bytesHash the digest of the original class bytes
+     * @param classPool the class pool of the loader defining the class
+     * @return a copy of the transformed bytes or null
+     */
+    public byte[] get(Transform transform, ContentHash bytesHash, ClassPool classPool) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(List.of(transform, bytesHash));
+        }
+        if (entry == null || !entry.isValidFor(classPool)) {
+            return null;
+        }
+        // later transformers may modify the array they get
+        return entry.bytes.clone();
+    }
+
+    /**
+     * Memoizes the transformed class.
+     *
+     * @param transform the transform
+     * @param bytesHash the digest of the original class bytes
+     * @param ctClass the transformed class, still attached to its class pool
+     * @param bytes the transformed bytes
+     */
+    public void put(Transform transform, ContentHash bytesHash, CtClass ctClass, byte[] bytes) {
+        Set<String> typeNames = new LinkedHashSet<>(ctClass.getRefClasses());
+        try {
+            for (CtClass c = ctClass.getSuperclass(); c != null; c = c.getSuperclass()) {
+                typeNames.add(c.getName());
+            }
+        } catch (NotFoundException ignore) {
+        }
+        typeNames.remove(ctClass.getName());
+
+        ClassPool classPool = ctClass.getClassPool();
+        String[] names = typeNames.toArray(new String[0]);
+        URL[] urls = new URL[names.length];
+        ContentHash[] hashes = new ContentHash[names.length];
+        for (int i = 0; i < names.length; i++) {
+            urls[i] = classPool.find(names[i]);
+            if (urls[i] != null) {
+                hashes[i] = read(urls[i]);
+                if (hashes[i] == null) {
+                    return;
+                }
+            }
+        }
+        // the caller passes the bytes on, keep a copy of its own
+        Entry entry = new Entry(bytes.clone(), names, urls, hashes);
+        synchronized (this) {
+            entries.put(List.of(transform, bytesHash), entry);
+        }
+    }
+
+    private static ContentHash read(URL url) {
+        try {
+            URLConnection con = url.openConnection();
+            con.setUseCaches(false);
+            try (InputStream in = con.getInputStream()) {
+                return ContentHash.of(in.readAllBytes());
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+        final byte[] bytes;
+        private final String[] typeNames;
+        private final URL[] typeUrls;
+        private final ContentHash[] typeHashes;
+
+        Entry(byte[] bytes, String[] typeNames, URL[] typeUrls, ContentHash[] typeHashes) {
+            this.bytes = bytes;
+            this.typeNames = typeNames;
+            this.typeUrls = typeUrls;
+            this.typeHashes = typeHashes;
+        }
+
+        boolean isValidFor(ClassPool classPool) {
+            for (int i = 0; i < typeNames.length; i++) {
+                URL url = classPool.find(typeNames[i]);
+                if (url == null || typeUrls[i] == null) {
+                    if (url != typeUrls[i]) {
+                        return false;
+                    }
+                } else if (!url.toString().equals(typeUrls[i].toString())
+                        && !Objects.equals(read(url), typeHashes[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -21,12 +21,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.hotswap.jinjector.javassist.bytecode.ClassFile;
 import org.hotswap.jinjector.javassist.bytecode.Descriptor;
@@ -115,7 +123,45 @@ public class ClassPool {
 
     protected ClassPoolTail source;
     protected ClassPool parent;
-    protected Hashtable classes;        // should be synchronous
+    protected Map<String,CtClass> classes;  // a ConcurrentHashMap, must be thread-safe
+
+    /* Locks guarding the creation of CtClass objects.  A class name is
+     * mapped to one of them, so that classes with different names can be
+     * read in parallel while a class is never created twice.
+     */
+    private static final int LOCK_STRIPES = 32;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /* The limits of the class cache.  0 means no limit.
+     */
+    private volatile int maxCachedClasses = 0;
+    private volatile long maxCachedBytes = 0;
+    private long useClock;              // approximate; see touch()
+    private int lookups;                // since the last size check
+    private volatile boolean saturated; // true if nothing can be evicted
+    private final Object evictionLock = new Object();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private static final int SIZE_CHECK_INTERVAL = 256;
+
+    /* The classes discarded from the cache.  They are weakly referenced,
+     * so that a class still used elsewhere is returned again instead of
+     * a new CtClass object for the same class.
+     */
+    private final ConcurrentHashMap<String,EvictedRef> evicted
+        = new ConcurrentHashMap<String,EvictedRef>();
+    private final ReferenceQueue<CtClassType> evictedQueue
+        = new ReferenceQueue<CtClassType>();
+
+    private static final class EvictedRef extends WeakReference<CtClassType> {
+        final String name;
+
+        EvictedRef(String name, CtClassType clazz, ReferenceQueue<CtClassType> queue) {
+            super(clazz, queue);
+            this.name = name;
+        }
+    }
 
     /**
      * Table of registered cflow variables.
@@ -156,7 +202,10 @@ public class ClassPool {
      * @see javassist.ClassPool#getDefault()
      */
     public ClassPool(ClassPool parent) {
-        this.classes = new Hashtable(INIT_HASH_SIZE);
+        this.classes = new ConcurrentHashMap<String,CtClass>(INIT_HASH_SIZE);
+        for (int i = 0; i < LOCK_STRIPES; i++)
+            locks[i] = new Object();
+
         this.source = new ClassPoolTail();
         this.parent = parent;
         if (parent == null) {
@@ -206,6 +255,43 @@ public class ClassPool {
 
     private static ClassPool defaultPool = null;
 
+    /**
+     * Returns the class pool shared by the whole process for the classes
+     * of the platform, that is, the classes visible to the platform class
+     * loader.  They are read from the run-time image.
+     *
+     * <p>The returned pool is read-only.  Its search path cannot be
+     * changed, classes cannot be made in it and the <code>CtClass</code>
+     * objects obtained from it are frozen.  So it can be the parent of
+     * any number of class pools, which do not read and parse the platform
+     * classes again.  A child class pool that edits a platform class must
+     * make its own copy with <code>makeClass(InputStream, false)</code>.
+     * Do not call <code>defrost()</code> on the classes of this pool.
+     *
+     * @see #ClassPool(ClassPool)
+     */
+    public static synchronized ClassPool getPlatformPool() {
+        if (platformPool == null)
+            platformPool = new PlatformClassPool();
+
+        return platformPool;
+    }
+
+    private static ClassPool platformPool = null;
+
+    /**
+     * Makes the platform class pool search the given index before
+     * the run-time image.  It replaces the index given before.
+     * Since the index contains only declarations, the platform classes
+     * found in it do not have method bodies.
+     *
+     * @param index     the index or null.
+     * @see #getPlatformPool()
+     */
+    public static void setPlatformTypeIndex(TypeIndex index) {
+        ((PlatformClassPool)getPlatformPool()).setTypeIndex(index);
+    }
+
     /**
      * Provide a hook so that subclasses can do their own
      * caching of classes.
@@ -214,7 +300,7 @@ public class ClassPool {
      * @see #removeCached(String)
      */
     protected CtClass getCached(String classname) {
-        return (CtClass)classes.get(classname);
+        return classes.get(classname);
     }
 
     /**
@@ -226,6 +312,7 @@ public class ClassPool {
      */
     protected void cacheCtClass(String classname, CtClass c, boolean dynamic) {
         classes.put(classname, c);
+        evicted.remove(classname);
     }
 
     /**
@@ -236,7 +323,12 @@ public class ClassPool {
      * @see #cacheCtClass(String,CtClass,boolean)
      */
     protected CtClass removeCached(String classname) {
-        return (CtClass)classes.remove(classname);
+        CtClass c = classes.remove(classname);
+        EvictedRef ref = evicted.remove(classname);
+        if (c == null && ref != null)
+            c = ref.get();
+
+        return c;
     }
 
     /**
@@ -253,9 +345,185 @@ public class ClassPool {
     void compress() {
         if (compressCount++ > COMPRESS_THRESHOLD) {
             compressCount = 0;
-            Enumeration e = classes.elements();
-            while (e.hasMoreElements())
-                ((CtClass)e.nextElement()).compress();
+            Iterator<CtClass> it = classes.values().iterator();
+            while (it.hasNext())
+                it.next().compress();
+        }
+    }
+
+    /**
+     * Limits the number of <code>CtClass</code> objects cached by this
+     * class pool.  If the cache exceeds one of the limits, the least
+     * recently used classes are discarded until it holds at most 90%
+     * of the limits.  Only the classes read from the class path that
+     * are neither modified nor frozen are discarded.
+     *
+     * <p>A discarded class is only weakly referenced by this class pool.
+     * If it is requested again while it is still referenced elsewhere,
+     * the same <code>CtClass</code> object is returned and cached again.
+     * Otherwise it is read again and a new <code>CtClass</code> object
+     * is returned.  The new object can be told apart from the discarded
+     * one only by data kept without a reference to it, such as its
+     * <code>System.identityHashCode()</code>.
+     *
+     * <p>The size of a class is an estimate based on the size of
+     * its class file.  Since it is checked only periodically, the cache
+     * may temporarily exceed <code>maxBytes</code>.  Classes are not
+     * limited by default.
+     *
+     * @param maxClasses        the maximum number of classes or 0.
+     * @param maxBytes          the maximum estimated number of bytes
+     *                          retained by the classes or 0.
+     * @see #getEstimatedCacheSize()
+     */
+    public void setCacheLimits(int maxClasses, long maxBytes) {
+        maxCachedClasses = maxClasses;
+        maxCachedBytes = maxBytes;
+        evictIfNeeded(true);
+    }
+
+    /**
+     * Returns the number of lookups that found the class in the cache
+     * of this class pool.
+     */
+    public long getCacheHitCount() { return hits.sum(); }
+
+    /**
+     * Returns the number of lookups that did not find the class in
+     * the cache of this class pool.  They include the lookups
+     * delegated to the parent class pool.
+     */
+    public long getCacheMissCount() { return misses.sum(); }
+
+    /**
+     * Returns the number of classes discarded because the cache
+     * exceeded its limits.
+     *
+     * @see #setCacheLimits(int, long)
+     */
+    public long getEvictionCount() { return evictions.sum(); }
+
+    /**
+     * Returns the number of classes cached by this class pool.
+     */
+    public int getCachedClassCount() { return classes.size(); }
+
+    /**
+     * Returns the estimated number of bytes retained by the classes
+     * cached by this class pool.  It is computed from the sizes of
+     * the class files and whether they are currently parsed.
+     */
+    public long getEstimatedCacheSize() {
+        long size = 0;
+        Iterator<CtClass> it = classes.values().iterator();
+        while (it.hasNext()) {
+            CtClass c = it.next();
+            if (c instanceof CtClassType)
+                size += ((CtClassType)c).estimatedSize();
+        }
+
+        return size;
+    }
+
+    /* Records a use of the class for the LRU eviction.
+     * Concurrent updates may be lost; the order is approximate.
+     */
+    private void touch(CtClass clazz) {
+        if (clazz instanceof CtClassType)
+            ((CtClassType)clazz).lastUsed = ++useClock;
+    }
+
+    /* Discards the least recently used classes if the cache exceeds
+     * its limits.  The estimated size is computed only every
+     * SIZE_CHECK_INTERVAL lookups unless force is true.  So is the number
+     * of classes if the last eviction could not meet the limits.
+     */
+    private void evictIfNeeded(boolean force) {
+        int maxClasses = maxCachedClasses;
+        long maxBytes = maxCachedBytes;
+        if (maxClasses <= 0 && maxBytes <= 0)
+            return;
+
+        boolean interval = force;
+        if (++lookups >= SIZE_CHECK_INTERVAL) {     // lost updates are harmless
+            lookups = 0;
+            interval = true;
+        }
+
+        boolean overCount = maxClasses > 0 && classes.size() > maxClasses;
+        if (!(interval && maxBytes > 0)
+            && !(overCount && (interval || !saturated)))
+            return;
+
+        synchronized (evictionLock) {
+            expungeEvicted();
+            List<CtClassType> candidates = new ArrayList<CtClassType>();
+            long size = 0;
+            Iterator<CtClass> it = classes.values().iterator();
+            while (it.hasNext()) {
+                CtClass c = it.next();
+                if (c instanceof CtClassType) {
+                    CtClassType ct = (CtClassType)c;
+                    size += ct.estimatedSize();
+                    if (ct.isEvictable())
+                        candidates.add(ct);
+                }
+            }
+
+            saturated = false;
+            int count = classes.size();
+            int classLimit = maxClasses > 0 ? maxClasses - maxClasses / 10 : Integer.MAX_VALUE;
+            long byteLimit = maxBytes > 0 ? maxBytes - maxBytes / 10 : Long.MAX_VALUE;
+            if ((maxClasses <= 0 || count <= maxClasses)
+                && (maxBytes <= 0 || size <= maxBytes))
+                return;
+
+            Collections.sort(candidates, new Comparator<CtClassType>() {
+                @Override
+                public int compare(CtClassType a, CtClassType b) {
+                    return Long.compare(a.lastUsed, b.lastUsed);
+                }
+            });
+
+            for (CtClassType ct: candidates) {
+                if (count <= classLimit && size <= byteLimit)
+                    break;
+
+                String name = ct.getName();
+                synchronized (lockFor(name)) {
+                    if (ct.isEvictable() && classes.remove(name, ct)) {
+                        evicted.put(name, new EvictedRef(name, ct, evictedQueue));
+                        count--;
+                        size -= ct.estimatedSize();
+                        evictions.increment();
+                    }
+                }
+            }
+
+            // the remaining classes cannot be discarded
+            saturated = count > classLimit || size > byteLimit;
+        }
+    }
+
+    /* Returns a discarded class that is still referenced elsewhere
+     * or null.  Invoked while the lock for the class name is held.
+     */
+    private CtClass restoreEvicted(String classname) {
+        if (evicted.isEmpty())
+            return null;
+
+        expungeEvicted();
+        EvictedRef ref = evicted.remove(classname);
+        return ref == null ? null : ref.get();
+    }
+
+    /* Removes the discarded classes that have been garbage collected.
+     */
+    private void expungeEvicted() {
+        Reference<? extends CtClassType> ref;
+        while ((ref = evictedQueue.poll()) != null) {
+            EvictedRef e = (EvictedRef)ref;
+            evicted.remove(e.name, e);
         }
     }
 
@@ -385,14 +653,25 @@ public class ClassPool {
      * CtClass object from the hash table and inserts it with the new
      * name.  Don't delegate to the parent.
      */
-    synchronized void classNameChanged(String oldname, CtClass clazz) {
-        CtClass c = (CtClass)getCached(oldname);
-        if (c == clazz)             // must check this equation.
-            removeCached(oldname);  // see getAndRename().
+    void classNameChanged(String oldname, CtClass clazz) {
+        synchronized (lockFor(oldname)) {
+            CtClass c = (CtClass)getCached(oldname);
+            if (c == clazz)             // must check this equation.
+                removeCached(oldname);  // see getAndRename().
+        }
 
         String newName = clazz.getName();
-        checkNotFrozen(newName);
-        cacheCtClass(newName, clazz, false);
+        synchronized (lockFor(newName)) {
+            checkNotFrozen(newName);
+            cacheCtClass(newName, clazz, false);
+        }
+    }
+
+    /* Returns the lock guarding the creation of the CtClass object
+     * with the given name.
+     */
+    private Object lockFor(String classname) {
+        return locks[classname.hashCode() & (LOCK_STRIPES - 1)];
     }
 
     /**
@@ -491,14 +770,48 @@ public class ClassPool {
      * @param useCache      false if the cached CtClass must be ignored.
      * @return null     if the class could not be found.
      */
-    protected synchronized CtClass get0(String classname, boolean useCache)
+    protected CtClass get0(String classname, boolean useCache)
+        throws NotFoundException
+    {
+        CtClass clazz = null;
+        if (useCache) {
+            clazz = getCached(classname);
+            if (clazz != null) {
+                hits.increment();
+                if (maxCachedClasses > 0 || maxCachedBytes > 0) {
+                    touch(clazz);
+                    evictIfNeeded(false);
+                }
+
+                return clazz;       // no lock is needed
+            }
+
+            misses.increment();
+        }
+
+        synchronized (lockFor(classname)) {
+            clazz = get1(classname, useCache);
+        }
+
+        // not while the lock is held since eviction takes other locks
+        if (clazz != null && useCache)
+            evictIfNeeded(false);
+
+        return clazz;
+    }
+
+    /* Invoked by get0() while the lock for the class name is held.
+     * The lock of a parent class pool may be acquired but the lock of
+     * a child class pool is never.
+     */
+    private CtClass get1(String classname, boolean useCache)
         throws NotFoundException
     {
         CtClass clazz = null;
         if (useCache) {
             clazz = getCached(classname);
             if (clazz != null)
-                return clazz;
+                return clazz;       // created by another thread
         }
 
         if (!childFirstLookup && parent != null) {
@@ -507,11 +820,22 @@ public class ClassPool {
                 return clazz;
         }
 
-        clazz = createCtClass(classname, useCache);
+        if (useCache)
+            clazz = restoreEvicted(classname);
+
+        if (clazz == null)
+            clazz = createCtClass(classname, useCache);
+
         if (clazz != null) {
             // clazz.getName() != classname if classname is "[L<name>;".
-            if (useCache)
+            if (useCache) {
+                if (clazz instanceof CtClassType) {
+                    ((CtClassType)clazz).evictable = true;
+                    touch(clazz);
+                }
+
                 cacheCtClass(clazz.getName(), clazz, false);
+            }
 
             return clazz;
         }
@@ -823,13 +1147,15 @@ public class ClassPool {
      * @param superclass the super class.
      * @throws RuntimeException if the existing class is frozen.
      */
-    public synchronized CtClass makeClass(String classname, CtClass superclass)
+    public CtClass makeClass(String classname, CtClass superclass)
         throws RuntimeException
     {
-        checkNotFrozen(classname);
-        CtClass clazz = new CtNewClass(classname, this, false, superclass);
-        cacheCtClass(classname, clazz, true);
-        return clazz;
+        synchronized (lockFor(classname)) {
+            checkNotFrozen(classname);
+            CtClass clazz = new CtNewClass(classname, this, false, superclass);
+            cacheCtClass(classname, clazz, true);
+            return clazz;
+        }
     }
 
     /**
@@ -839,11 +1165,13 @@ public class ClassPool {
      * @param classname     a fully-qualified class name.
      * @return      the nested class.
      */
-    synchronized CtClass makeNestedClass(String classname) {
-        checkNotFrozen(classname);
-        CtClass clazz = new CtNewClass(classname, this, false, null);
-        cacheCtClass(classname, clazz, true);
-        return clazz;
+    CtClass makeNestedClass(String classname) {
+        synchronized (lockFor(classname)) {
+            checkNotFrozen(classname);
+            CtClass clazz = new CtNewClass(classname, this, false, null);
+            cacheCtClass(classname, clazz, true);
+            return clazz;
+        }
     }
 
     /**
@@ -867,13 +1195,15 @@ public class ClassPool {
      * @param superclass the super interface.
      * @throws RuntimeException if the existing interface is frozen.
      */
-    public synchronized CtClass makeInterface(String name, CtClass superclass)
+    public CtClass makeInterface(String name, CtClass superclass)
         throws RuntimeException
     {
-        checkNotFrozen(name);
-        CtClass clazz = new CtNewClass(name, this, true, superclass);
-        cacheCtClass(name, clazz, true);
-        return clazz;
+        synchronized (lockFor(name)) {
+            checkNotFrozen(name);
+            CtClass clazz = new CtNewClass(name, this, true, superclass);
+            cacheCtClass(name, clazz, true);
+            return clazz;
+        }
     }
 
     /**
@@ -983,6 +1313,20 @@ public class ClassPool {
         source.removeClassPath(cp);
     }
 
+    /**
+     * Discards the remembered results of earlier class file searches.
+     * The search path remembers where a class file was found until
+     * a <code>ClassPath</code> object is inserted, appended or removed.
+     * If the search path consists only of jar files, the run-time image
+     * and <code>ByteArrayClassPath</code> objects, it also remembers which
+     * class names were not found.  This method must be called if
+     * a class file was added to such a <code>ClassPath</code> object after
+     * it was searched for.
+     */
+    public void clearClassPathCache() {
+        source.clearCache();
+    }
+
     /**
      * Appends directories and jar files for search.
      *
@@ -16,6 +16,7 @@
 
 package org.hotswap.jinjector.javassist;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -27,7 +28,12 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
@@ -83,30 +89,31 @@ final class DirClassPath implements ClassPath {
     }
 }
 
+/* The jars in the directory are opened when a class is looked up first.
+ * A package index tells which jars contain classes of a package, so
+ * a lookup examines only those jars.  The index is rebuilt when
+ * the directory or one of the jars is modified.  The time stamps are
+ * checked at most once per CHECK_INTERVAL.
+ */
 final class JarDirClassPath implements ClassPath {
-    JarClassPath[] jars;
+    private static final long CHECK_INTERVAL = 1000000000L;    // 1 sec.
 
-    JarDirClassPath(String dirName) throws NotFoundException {
-        File[] files = new File(dirName).listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                name = name.toLowerCase();
-                return name.endsWith(".jar") || name.endsWith(".zip");
-            }
-        });
+    private final File directory;
+    private long directoryModified;
+    private long lastCheck;
+    private JarClassPath[] jars;
+    private Map<String,JarClassPath[]> packageIndex;
 
-        if (files != null) {
-            jars = new JarClassPath[files.length];
-            for (int i = 0; i < files.length; i++)
-                jars[i] = new JarClassPath(files[i].getPath());
-        }
+    JarDirClassPath(String dirName) throws NotFoundException {
+        directory = new File(dirName);
     }
 
     @Override
     public InputStream openClassfile(String classname) throws NotFoundException {
-        if (jars != null)
-            for (int i = 0; i < jars.length; i++) {
-                InputStream is = jars[i].openClassfile(classname);
+        JarClassPath[] candidates = candidates(classname);
+        if (candidates != null)
+            for (int i = 0; i < candidates.length; i++) {
+                InputStream is = candidates[i].openClassfile(classname);
                 if (is != null)
                     return is;
             }
@@ -116,26 +123,127 @@ final class JarDirClassPath implements ClassPath {
 
     @Override
     public URL find(String classname) {
-        if (jars != null)
-            for (int i = 0; i < jars.length; i++) {
-                URL url = jars[i].find(classname);
+        JarClassPath[] candidates = candidates(classname);
+        if (candidates != null)
+            for (int i = 0; i < candidates.length; i++) {
+                URL url = candidates[i].find(classname);
                 if (url != null)
                     return url;
             }
 
         return null;    // not found
     }
+
+    private synchronized JarClassPath[] candidates(String classname) {
+        long now = System.nanoTime();
+        if (packageIndex == null)
+            buildIndex(now);
+        else if (now - lastCheck > CHECK_INTERVAL) {
+            lastCheck = now;
+            if (isModified())
+                buildIndex(now);
+        }
+
+        return packageIndex.get(packageName(classname));
+    }
+
+    private boolean isModified() {
+        if (directory.lastModified() != directoryModified)
+            return true;
+
+        for (int i = 0; i < jars.length; i++)
+            if (jars[i].isModified())
+                return true;
+
+        return false;
+    }
+
+    private void buildIndex(long now) {
+        lastCheck = now;
+        directoryModified = directory.lastModified();
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                name = name.toLowerCase();
+                return name.endsWith(".jar") || name.endsWith(".zip");
+            }
+        });
+
+        Map<String,JarClassPath> oldJars = new HashMap<String,JarClassPath>();
+        if (jars != null)
+            for (JarClassPath jar:jars)
+                oldJars.put(jar.pathname, jar);
+
+        List<JarClassPath> newJars = new ArrayList<JarClassPath>();
+        Map<String,List<JarClassPath>> index = new HashMap<String,List<JarClassPath>>();
+        if (files != null)
+            for (File file:files) {
+                JarClassPath jar = oldJars.remove(file.getPath());
+                if (jar != null && jar.isModified()) {
+                    jar.close();
+                    jar = null;
+                }
+
+                if (jar == null)
+                    try {
+                        jar = new JarClassPath(file.getPath());
+                    }
+                    catch (NotFoundException e) {
+                        continue;   // not a readable jar file
+                    }
+
+                newJars.add(jar);
+                for (String pkg:jar.packageNames()) {
+                    List<JarClassPath> list = index.get(pkg);
+                    if (list == null)
+                        index.put(pkg, list = new ArrayList<JarClassPath>(1));
+
+                    list.add(jar);
+                }
+            }
+
+        for (JarClassPath jar:oldJars.values())
+            jar.close();
+
+        jars = newJars.toArray(new JarClassPath[newJars.size()]);
+        packageIndex = new HashMap<String,JarClassPath[]>();
+        for (Map.Entry<String,List<JarClassPath>> e:index.entrySet())
+            packageIndex.put(e.getKey(),
+                e.getValue().toArray(new JarClassPath[e.getValue().size()]));
+    }
+
+    private static String packageName(String classname) {
+        int i = classname.lastIndexOf('.');
+        return i < 0 ? "" : classname.substring(0, i).replace('.', '/');
+    }
+
+    synchronized void close() {
+        if (jars != null)
+            for (int i = 0; i < jars.length; i++)
+                jars[i].close();
+
+        jars = null;
+        packageIndex = null;
+    }
 }
 
+/* The jar file is kept open and its class entries are indexed by name.
+ * Class files are read from the open jar file without going through
+ * a jar: URL.
+ */
 final class JarClassPath implements ClassPath {
-    List<String> jarfileEntries;
+    Set<String> jarfileEntries;
     String jarfileURL;
+    JarFile jarfile;
+    final String pathname;
+    private final long lastModified;
 
     JarClassPath(String pathname) throws NotFoundException {
-        JarFile jarfile = null;
+        this.pathname = pathname;
+        this.lastModified = new File(pathname).lastModified();
         try {
             jarfile = new JarFile(pathname);
-            jarfileEntries = new ArrayList<String>();
+            jarfileEntries = new HashSet<String>();
             for (JarEntry je:Collections.list(jarfile.entries()))
                 if (je.getName().endsWith(".class"))
                     jarfileEntries.add(je.getName());
@@ -143,12 +251,7 @@ final class JarClassPath implements ClassPath {
                     .toURI().toURL().toString();
             return;
         } catch (IOException e) {}
-        finally {
-            if (null != jarfile)
-                try {
-                    jarfile.close();
-                } catch (IOException e) {}
-        }
+        close();
         throw new NotFoundException(pathname);
     }
 
@@ -156,18 +259,35 @@ final class JarClassPath implements ClassPath {
     public InputStream openClassfile(String classname)
             throws NotFoundException
     {
-        URL jarURL = find(classname);
-        if (null != jarURL)
+        String jarname = classname.replace('.', '/') + ".class";
+        if (!jarfileEntries.contains(jarname))
+            return null;
+
+        try {
+            JarEntry je = jarfile.getJarEntry(jarname);
+            if (je == null)
+                return null;
+
+            InputStream in = jarfile.getInputStream(je);
             try {
-                java.net.URLConnection con = jarURL.openConnection();
-                con.setUseCaches(false);
-                return con.getInputStream();
+                // the entry is read at once so that the jar file is not
+                // left with an open stream
+                long size = je.getSize();
+                byte[] bytes = size >= 0 ? in.readNBytes((int)size)
+                                         : in.readAllBytes();
+                return new ByteArrayInputStream(bytes);
             }
-            catch (IOException e) {
-                throw new NotFoundException("broken jar file?: "
-                        + classname);
+            finally {
+                in.close();
             }
-        return null;
+        }
+        catch (IOException e) {
+            throw new NotFoundException("broken jar file?: "
+                    + classname);
+        }
+        catch (IllegalStateException e) {
+            return null;    // closed since the jar file was replaced
+        }
     }
 
     @Override
@@ -181,6 +301,36 @@ final class JarClassPath implements ClassPath {
         return null;            // not found
     }
 
+    /* Returns the names of the packages containing classes,
+     * for example, java/lang.
+     */
+    Set<String> packageNames() {
+        Set<String> names = new HashSet<String>();
+        for (String name:jarfileEntries) {
+            int i = name.lastIndexOf('/');
+            names.add(i < 0 ? "" : name.substring(0, i));
+        }
+
+        return names;
+    }
+
+    /* Returns true if the jar file was modified after it was opened.
+     */
+    boolean isModified() {
+        return new File(pathname).lastModified() != lastModified;
+    }
+
+    /* Closes the jar file.  Called when this class path is removed
+     * from a class pool.
+     */
+    void close() {
+        if (jarfile != null)
+            try {
+                jarfile.close();
+            }
+            catch (IOException e) {}
+    }
+
     @Override
     public String toString() {
         return jarfileURL == null ? "<null>" : jarfileURL.toString();
@@ -190,6 +340,37 @@ final class JarClassPath implements ClassPath {
 final class ClassPoolTail {
     protected ClassPathList pathList;
 
+    /* The class path element where a class was found by find() or
+     * openClassfile() and class names that were not found.  They are
+     * discarded whenever the class path is modified.  Class names are
+     * recorded as not found only if all the elements have fixed
+     * contents (see isImmutable()), since a class file may appear later
+     * in a directory or a class loader.
+     */
+    private static final int MAX_HANDLES = 4096;
+    private static final int MAX_MISSING = 4096;
+    private final Map<String,ClassPath> handles = new LinkedHashMap<String,ClassPath>(16, 0.75f, true) {
+        /** default serialVersionUID */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,ClassPath> eldest) {
+            return size() > MAX_HANDLES;
+        }
+    };
+    private final Map<String,Boolean> missing = new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+        /** default serialVersionUID */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+            return size() > MAX_MISSING;
+        }
+    };
+    private int modCount;
+    private boolean immutablePath = true;
+    private volatile boolean hasTypeIndex = false;
+
     public ClassPoolTail() {
         pathList = null;
     }
@@ -211,6 +392,7 @@ final class ClassPoolTail {
 
     public synchronized ClassPath insertClassPath(ClassPath cp) {
         pathList = new ClassPathList(cp, pathList);
+        pathChanged();
         return cp;
     }
 
@@ -226,6 +408,7 @@ final class ClassPoolTail {
             list.next = tail;
         }
 
+        pathChanged();
         return cp;
     }
 
@@ -241,6 +424,12 @@ final class ClassPoolTail {
                     else
                         list = list.next;
             }
+
+        pathChanged();
+        if (cp instanceof JarClassPath)
+            ((JarClassPath)cp).close();
+        else if (cp instanceof JarDirClassPath)
+            ((JarDirClassPath)cp).close();
     }
 
     public ClassPath appendSystemPath() {
@@ -250,6 +439,11 @@ final class ClassPoolTail {
         if (cl == null) {
             cl = ClassLoader.getSystemClassLoader();
         }
+        try {
+            // JDK classes are read from the run-time image
+            appendClassPath(new JrtClassPath(cl));
+        }
+        catch (NotFoundException e) {}
         return appendClassPath(new LoaderClassPath(cl));
     }
 
@@ -293,6 +487,12 @@ final class ClassPoolTail {
         if (fin == null)
             throw new NotFoundException(classname);
 
+        if (hasTypeIndex && isIndexed(classname)) {
+            // write the original class file, not the stripped one
+            fin.close();
+            fin = find(classname).openStream();
+        }
+
         try {
             copyStream(fin, out);
         }
@@ -301,6 +501,21 @@ final class ClassPoolTail {
         }
     }
 
+    /* Returns true if the class file is found first in a TypeIndex.
+     */
+    private boolean isIndexed(String classname) {
+        for (ClassPathList list = pathList; list != null; list = list.next) {
+            if (list.path instanceof TypeIndex) {
+                if (((TypeIndex)list.path).contains(classname))
+                    return true;
+            }
+            else if (list.path.find(classname) != null)
+                return false;
+        }
+
+        return false;
+    }
+
     /*
     -- faster version --
     void checkClassName(String classname) throws NotFoundException {
@@ -331,6 +546,24 @@ final class ClassPoolTail {
     InputStream openClassfile(String classname)
         throws NotFoundException
     {
+        ClassPath handle;
+        int count;
+        synchronized (this) {
+            if (missing.containsKey(classname))
+                return null;
+
+            handle = handles.get(classname);
+            count = modCount;
+        }
+
+        if (handle != null)
+            try {
+                InputStream ins = handle.openClassfile(classname);
+                if (ins != null)
+                    return ins;
+            }
+            catch (NotFoundException e) {}     // search again
+
         ClassPathList list = pathList;
         InputStream ins = null;
         NotFoundException error = null;
@@ -345,12 +578,16 @@ final class ClassPoolTail {
 
             if (ins == null)
                 list = list.next;
-            else
+            else {
+                record(classname, list.path, count);
                 return ins;
+            }
         }
 
         if (error != null)
             throw error;
+
+        record(classname, null, count);
         return null;    // not found
     }
 
@@ -363,19 +600,79 @@ final class ClassPoolTail {
      * @return null if the class file could not be found.
      */
     public URL find(String classname) {
+        int count;
+        synchronized (this) {
+            if (missing.containsKey(classname))
+                return null;
+
+            count = modCount;
+        }
+
         ClassPathList list = pathList;
         URL url = null;
         while (list != null) {
             url = list.path.find(classname);
             if (url == null)
                 list = list.next;
-            else
+            else {
+                record(classname, list.path, count);
                 return url;
+            }
         }
 
+        record(classname, null, count);
         return null;
     }
 
+    /* Records the class path element where the class was found, or null
+     * if it was not found.  Nothing is recorded if the class path was
+     * modified while it was searched.
+     */
+    private synchronized void record(String classname, ClassPath cp, int count) {
+        if (count != modCount)
+            return;
+
+        if (cp == null) {
+            if (immutablePath)
+                missing.put(classname, Boolean.TRUE);
+        }
+        else
+            handles.put(classname, cp);
+    }
+
+    private synchronized void pathChanged() {
+        boolean immutable = true;
+        boolean index = false;
+        for (ClassPathList list = pathList; list != null; list = list.next) {
+            immutable &= isImmutable(list.path);
+            index |= list.path instanceof TypeIndex;
+        }
+
+        immutablePath = immutable;
+        hasTypeIndex = index;
+        clearCache();
+    }
+
+    /* Returns true if the set of class files in the class path element
+     * never changes.  A jar file or a type index is not expected to be
+     * replaced while it is open.
+     */
+    private static boolean isImmutable(ClassPath cp) {
+        return cp instanceof JarClassPath || cp instanceof JrtClassPath
+               || cp instanceof ByteArrayClassPath || cp instanceof TypeIndex;
+    }
+
+    /**
+     * Discards the cached results of earlier searches.
+     * It must be called if a class file is added to a class path
+     * element after it was searched for.
+     */
+    public synchronized void clearCache() {
+        modCount++;
+        handles.clear();
+        missing.clear();
+    }
+
     /**
      * Reads from an input stream until it reaches the end.
      *
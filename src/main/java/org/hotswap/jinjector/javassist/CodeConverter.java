@@ -548,8 +548,7 @@ public class CodeConverter {
             codeAttr.setMaxStack(codeAttr.getMaxStack() + stack);
 
         try {
-        	minfo.rebuildStackMapIf6(clazz.getClassPool(),
-                                     clazz.getClassFile2());
+            clazz.rebuildStackMap(minfo);
         }
         catch (BadBytecode b) {
             throw new CannotCompileException(b.getMessage(), b);
@@ -65,7 +65,7 @@ public abstract class CtBehavior extends CtMember {
         throws CannotCompileException
     {
         CtClass declaring = declaringClass;
-        MethodInfo srcInfo = src.methodInfo;
+        MethodInfo srcInfo = src.getMethodInfo2();
         CtClass srcClass = src.getDeclaringClass();
         ConstPool cp = declaring.getClassFile2().getConstPool();
 
@@ -87,6 +87,7 @@ public abstract class CtBehavior extends CtMember {
             }
 
             // a stack map table is copied from srcInfo.
+            srcClass.flushStackMap(srcInfo);
             methodInfo = new MethodInfo(cp, srcInfo.getName(), srcInfo, map);
             if (isCons && patch)
                 methodInfo.setSuperclass(destSuperName);
@@ -150,7 +151,14 @@ public abstract class CtBehavior extends CtMember {
      * @see CtClass#isFrozen()
      * @see CtClass#prune()
      */
-    public MethodInfo getMethodInfo2() { return methodInfo; }
+    public MethodInfo getMethodInfo2() {
+        // a class read from a type index lacks method bodies until they are needed
+        MethodInfo minfo = declaringClass.completeMethodInfo(methodInfo);
+        if (minfo != methodInfo)
+            methodInfo = minfo;
+
+        return minfo;
+    }
 
     /**
      * Obtains the modifiers of the method/constructor.
@@ -364,7 +372,7 @@ public abstract class CtBehavior extends CtMember {
     @Override
     public String getGenericSignature() {
         SignatureAttribute sa
-            = (SignatureAttribute)methodInfo.getAttribute(SignatureAttribute.tag);
+            = (SignatureAttribute)getMethodInfo2().getAttribute(SignatureAttribute.tag);
         return sa == null ? null : sa.getSignature();
     }
 
@@ -391,7 +399,7 @@ public abstract class CtBehavior extends CtMember {
      */
     public CtClass[] getExceptionTypes() throws NotFoundException {
         String[] exceptions;
-        ExceptionsAttribute ea = methodInfo.getExceptionsAttribute();
+        ExceptionsAttribute ea = getMethodInfo2().getExceptionsAttribute();
         if (ea == null)
             exceptions = null;
         else
@@ -455,6 +463,15 @@ public abstract class CtBehavior extends CtMember {
     public void setBody(String src,
                         String delegateObj, String delegateMethod)
         throws CannotCompileException
+    {
+        setBody(compileBody(src, delegateObj, delegateMethod));
+    }
+
+    /* Compiles the source code of a body set by setBody().
+     */
+    CodeAttribute compileBody(String src,
+                              String delegateObj, String delegateMethod)
+        throws CannotCompileException
     {
         CtClass cc = declaringClass;
         cc.checkModify();
@@ -464,15 +481,26 @@ public abstract class CtBehavior extends CtMember {
                 jv.recordProceed(delegateObj, delegateMethod);
 
             Bytecode b = jv.compileBody(this, src);
-            methodInfo.setCodeAttribute(b.toCodeAttribute());
+            return b.toCodeAttribute();
+        }
+        catch (CompileError e) {
+            throw new CannotCompileException(e);
+        }
+    }
+
+    /* Sets the body compiled by compileBody().
+     */
+    void setBody(CodeAttribute body) throws CannotCompileException {
+        CtClass cc = declaringClass;
+        cc.checkModify();
+        try {
+            methodInfo.setCodeAttribute(body);
             methodInfo.setAccessFlags(methodInfo.getAccessFlags()
                                       & ~AccessFlag.ABSTRACT);
-            methodInfo.rebuildStackMapIf6(cc.getClassPool(), cc.getClassFile2());
+            cc.rebuildStackMap(methodInfo);
             declaringClass.rebuildClassFile();
         }
-        catch (CompileError e) {
-            throw new CannotCompileException(e);
-        } catch (BadBytecode e) {
+        catch (BadBytecode e) {
             throw new CannotCompileException(e);
         }
     }
@@ -520,7 +548,7 @@ public abstract class CtBehavior extends CtMember {
     @Override
     public byte[] getAttribute(String name)
     {
-        AttributeInfo ai = methodInfo.getAttribute(name);
+        AttributeInfo ai = getMethodInfo2().getAttribute(name);
         if (ai == null)
             return null;
         return ai.get();
@@ -769,13 +797,20 @@ public abstract class CtBehavior extends CtMember {
     private void insertBefore(String src, boolean rebuild)
         throws CannotCompileException
     {
+        insertBefore(compileBefore(src), rebuild);
+    }
+
+    /* Compiles the source code inserted by insertBefore().
+     * The returned code attribute only holds the compiled code, its
+     * exception table, max_stack and max_locals.
+     */
+    CodeAttribute compileBefore(String src) throws CannotCompileException {
         CtClass cc = declaringClass;
         cc.checkModify();
         CodeAttribute ca = methodInfo.getCodeAttribute();
         if (ca == null)
             throw new CannotCompileException("no method body");
 
-        CodeIterator iterator = ca.iterator();
         Javac jv = new Javac(cc);
         try {
             int nvars = jv.recordParams(getParameterTypes(),
@@ -784,9 +819,31 @@ public abstract class CtBehavior extends CtMember {
             jv.recordLocalVariables(ca, 0);
             jv.recordType(getReturnType0());
             jv.compileStmnt(src);
-            Bytecode b = jv.getBytecode();
-            int stack = b.getMaxStack();
-            int locals = b.getMaxLocals();
+            return jv.getBytecode().toCodeAttribute();
+        }
+        catch (NotFoundException e) {
+            throw new CannotCompileException(e);
+        }
+        catch (CompileError e) {
+            throw new CannotCompileException(e);
+        }
+    }
+
+    /* Inserts the code compiled by compileBefore().
+     */
+    void insertBefore(CodeAttribute fragment, boolean rebuild)
+        throws CannotCompileException
+    {
+        CtClass cc = declaringClass;
+        cc.checkModify();
+        CodeAttribute ca = methodInfo.getCodeAttribute();
+        if (ca == null)
+            throw new CannotCompileException("no method body");
+
+        CodeIterator iterator = ca.iterator();
+        try {
+            int stack = fragment.getMaxStack();
+            int locals = fragment.getMaxLocals();
 
             if (stack > ca.getMaxStack())
                 ca.setMaxStack(stack);
@@ -794,16 +851,10 @@ public abstract class CtBehavior extends CtMember {
             if (locals > ca.getMaxLocals())
                 ca.setMaxLocals(locals);
 
-            int pos = iterator.insertEx(b.get());
-            iterator.insert(b.getExceptionTable(), pos);
+            int pos = iterator.insertEx(fragment.getCode());
+            iterator.insert(fragment.getExceptionTable(), pos);
             if (rebuild)
-                methodInfo.rebuildStackMapIf6(cc.getClassPool(), cc.getClassFile2());
-        }
-        catch (NotFoundException e) {
-            throw new CannotCompileException(e);
-        }
-        catch (CompileError e) {
-            throw new CannotCompileException(e);
+                cc.rebuildStackMap(methodInfo);
         }
         catch (BadBytecode e) {
             throw new CannotCompileException(e);
@@ -900,7 +951,44 @@ public abstract class CtBehavior extends CtMember {
 
             ca.setMaxStack(b.getMaxStack());
             ca.setMaxLocals(b.getMaxLocals());
-            methodInfo.rebuildStackMapIf6(cc.getClassPool(), cc.getClassFile2());
+            cc.rebuildStackMap(methodInfo);
+        }
+        catch (NotFoundException e) {
+            throw new CannotCompileException(e);
+        }
+        catch (CompileError e) {
+            throw new CannotCompileException(e);
+        }
+        catch (BadBytecode e) {
+            throw new CannotCompileException(e);
+        }
+    }
+
+    /* Compiles the source code inserted by insertAfter(src, false).
+     * The returned code attribute holds the advice code executed instead
+     * of every return instruction, including the return itself.
+     */
+    CodeAttribute compileAfter(String src) throws CannotCompileException {
+        CtClass cc = declaringClass;
+        cc.checkModify();
+        ConstPool pool = methodInfo.getConstPool();
+        CodeAttribute ca = methodInfo.getCodeAttribute();
+        if (ca == null)
+            throw new CannotCompileException("no method body");
+
+        int retAddr = ca.getMaxLocals();
+        Bytecode b = new Bytecode(pool, 0, retAddr + 1);
+        b.setStackDepth(ca.getMaxStack() + 1);
+        Javac jv = new Javac(b, cc);
+        try {
+            int nvars = jv.recordParams(getParameterTypes(),
+                                        Modifier.isStatic(getModifiers()));
+            jv.recordParamNames(ca, nvars);
+            CtClass rtype = getReturnType0();
+            int varNo = jv.recordReturnType(rtype, true);
+            jv.recordLocalVariables(ca, 0);
+            insertAfterAdvice(b, jv, src, pool, rtype, varNo);
+            return b.toCodeAttribute();
         }
         catch (NotFoundException e) {
             throw new CannotCompileException(e);
@@ -908,6 +996,79 @@ public abstract class CtBehavior extends CtMember {
         catch (CompileError e) {
             throw new CannotCompileException(e);
         }
+    }
+
+    /* Returns true if the body contains a return instruction.
+     * insertAfter() does not compile the source code if it does not.
+     */
+    boolean hasReturn() throws CannotCompileException {
+        CodeAttribute ca = methodInfo.getCodeAttribute();
+        if (ca == null)
+            throw new CannotCompileException("no method body");
+
+        CodeIterator iterator = ca.iterator();
+        try {
+            while (iterator.hasNext()) {
+                int c = iterator.byteAt(iterator.next());
+                if (c == Opcode.ARETURN || c == Opcode.IRETURN
+                    || c == Opcode.FRETURN || c == Opcode.LRETURN
+                    || c == Opcode.DRETURN || c == Opcode.RETURN)
+                    return true;
+            }
+        }
+        catch (BadBytecode e) {
+            throw new CannotCompileException(e);
+        }
+
+        return false;
+    }
+
+    /* Inserts the advice compiled by compileAfter().
+     * The body must contain a return instruction.
+     */
+    void insertAfter(CodeAttribute advice, boolean rebuild)
+        throws CannotCompileException
+    {
+        CtClass cc = declaringClass;
+        cc.checkModify();
+        CodeAttribute ca = methodInfo.getCodeAttribute();
+        if (ca == null)
+            throw new CannotCompileException("no method body");
+
+        CodeIterator iterator = ca.iterator();
+        try {
+            int adviceLen = advice.getCodeLength();
+            int handlerPos = iterator.getCodeLength();
+            int handlerLen = 0;
+            int advicePos = 0;
+            boolean noReturn = true;
+            while (iterator.hasNext()) {
+                int pos = iterator.next();
+                if (pos >= handlerPos)
+                    break;
+
+                int c = iterator.byteAt(pos);
+                if (c == Opcode.ARETURN || c == Opcode.IRETURN
+                    || c == Opcode.FRETURN || c == Opcode.LRETURN
+                    || c == Opcode.DRETURN || c == Opcode.RETURN) {
+                    if (noReturn) {
+                        handlerPos = iterator.append(advice.getCode());
+                        iterator.append(advice.getExceptionTable(), handlerPos);
+                        advicePos = iterator.getCodeLength() - adviceLen;
+                        handlerLen = advicePos - handlerPos;
+                        noReturn = false;
+                    }
+                    insertGoto(iterator, advicePos, pos);
+                    advicePos = iterator.getCodeLength() - adviceLen;
+                    handlerPos = advicePos - handlerLen;
+                }
+            }
+
+            ca.setMaxStack(advice.getMaxStack());
+            ca.setMaxLocals(advice.getMaxLocals());
+            if (rebuild)
+                cc.rebuildStackMap(methodInfo);
+        }
         catch (BadBytecode e) {
             throw new CannotCompileException(e);
         }
@@ -1131,7 +1292,7 @@ public abstract class CtBehavior extends CtMember {
             ca.getExceptionTable().add(getStartPosOfBody(ca), len, len,
                                        cp.addClassInfo(exceptionType));
             iterator.append(b.getExceptionTable(), pos);
-            methodInfo.rebuildStackMapIf6(cc.getClassPool(), cc.getClassFile2());
+            cc.rebuildStackMap(methodInfo);
         }
         catch (NotFoundException e) {
             throw new CannotCompileException(e);
@@ -1197,7 +1358,7 @@ public abstract class CtBehavior extends CtMember {
     public int insertAt(int lineNum, boolean modify, String src)
         throws CannotCompileException
     {
-        CodeAttribute ca = methodInfo.getCodeAttribute();
+        CodeAttribute ca = getMethodInfo2().getCodeAttribute();
         if (ca == null)
             throw new CannotCompileException("no method body");
 
@@ -1235,7 +1396,7 @@ public abstract class CtBehavior extends CtMember {
 
             index = iterator.insertAt(index, b.get());
             iterator.insert(b.getExceptionTable(), index);
-            methodInfo.rebuildStackMapIf6(cc.getClassPool(), cc.getClassFile2());
+            cc.rebuildStackMap(methodInfo);
             return lineNum;
         }
         catch (NotFoundException e) {
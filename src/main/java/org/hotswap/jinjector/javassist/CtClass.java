@@ -27,8 +27,11 @@ import java.net.URL;
 import java.security.ProtectionDomain;
 import java.util.Collection;
 
+import org.hotswap.jinjector.javassist.bytecode.BadBytecode;
 import org.hotswap.jinjector.javassist.bytecode.ClassFile;
 import org.hotswap.jinjector.javassist.bytecode.Descriptor;
+import org.hotswap.jinjector.javassist.bytecode.FieldInfo;
+import org.hotswap.jinjector.javassist.bytecode.MethodInfo;
 import org.hotswap.jinjector.javassist.bytecode.Opcode;
 import org.hotswap.jinjector.javassist.compiler.AccessorMaker;
 import org.hotswap.jinjector.javassist.expr.ExprEditor;
@@ -1460,6 +1463,68 @@ public abstract class CtClass {
      */
     public boolean stopPruning(boolean stop) { return true; }
 
+    /**
+     * Turns deferred rebuilding of stack maps on or off.
+     * Every <code>insertBefore()</code>, <code>insertAfter()</code>,
+     * <code>insertAt()</code>, <code>setBody()</code> or
+     * <code>addCatch()</code> in <code>CtBehavior</code> normally rebuilds
+     * the stack map of the modified method, which runs the type inference
+     * over the whole method.  If rebuilding is deferred, those methods only
+     * remove the stack map and mark it as stale.  Stale stack maps are
+     * rebuilt once per method by <code>rebuildStackMaps()</code> or
+     * <code>toBytecode()</code>.
+     *
+     * <p>While rebuilding is deferred, the <code>MethodInfo</code> of
+     * a modified method obtained by <code>getMethodInfo()</code> lacks
+     * a stack map.  Turning deferred rebuilding off rebuilds the stale
+     * stack maps.
+     *
+     * @param defer     defer rebuilding if true.  Otherwise, rebuild
+     *                  a stack map whenever a method is modified.
+     * @return the previous status.  true if rebuilding was deferred.
+     *
+     * @see #rebuildStackMaps()
+     */
+    public boolean deferStackMaps(boolean defer)
+        throws CannotCompileException
+    {
+        return false;
+    }
+
+    /**
+     * Rebuilds the stack maps marked as stale while rebuilding
+     * was deferred.  <code>toBytecode()</code>, <code>writeFile()</code>,
+     * and <code>toClass()</code> internally call this method.
+     *
+     * @see #deferStackMaps(boolean)
+     */
+    public void rebuildStackMaps() throws CannotCompileException {}
+
+    /* Rebuilds the stack map of a method declared in this class
+     * after it has been modified, or marks it as stale if rebuilding
+     * is deferred.  CtClassType overrides this method.
+     */
+    void rebuildStackMap(MethodInfo minfo) throws BadBytecode {
+        minfo.rebuildStackMapIf6(getClassPool(), getClassFile2());
+    }
+
+    /* Rebuilds the stack map of a method declared in this class
+     * if it is stale.  CtClassType overrides this method.
+     */
+    void flushStackMap(MethodInfo minfo) throws BadBytecode {}
+
+    /* Returns the method_info of a method declared in this class
+     * including its body and attributes.  CtClassType overrides this
+     * method for a class read from a TypeIndex.
+     */
+    MethodInfo completeMethodInfo(MethodInfo minfo) { return minfo; }
+
+    /* Returns the field_info of a field declared in this class
+     * including its attributes.  CtClassType overrides this method
+     * for a class read from a TypeIndex.
+     */
+    FieldInfo completeFieldInfo(FieldInfo finfo) { return finfo; }
+
     /**
      * Discards unnecessary attributes, in particular,
      * <code>CodeAttribute</code>s (method bodies) of the class,
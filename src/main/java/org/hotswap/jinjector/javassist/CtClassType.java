@@ -16,8 +16,6 @@
 
 package org.hotswap.jinjector.javassist;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -28,6 +26,7 @@ import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
@@ -50,6 +49,8 @@ import org.hotswap.jinjector.javassist.bytecode.InnerClassesAttribute;
 import org.hotswap.jinjector.javassist.bytecode.MethodInfo;
 import org.hotswap.jinjector.javassist.bytecode.ParameterAnnotationsAttribute;
 import org.hotswap.jinjector.javassist.bytecode.SignatureAttribute;
+import org.hotswap.jinjector.javassist.bytecode.StackMap;
+import org.hotswap.jinjector.javassist.bytecode.StackMapTable;
 import org.hotswap.jinjector.javassist.bytecode.annotation.Annotation;
 import org.hotswap.jinjector.javassist.compiler.AccessorMaker;
 import org.hotswap.jinjector.javassist.compiler.CompileError;
@@ -65,9 +66,14 @@ class CtClassType extends CtClass {
     private boolean wasFrozen;
     boolean wasPruned;
     boolean gcConstPool;    // if true, the constant pool entries will be garbage collected.
-    ClassFile classfile;
+    volatile ClassFile classfile;       // may be shared among threads
     byte[] rawClassfile;    // backup storage
 
+    /* true if the class file was read from a TypeIndex, which removes
+     * method bodies and most attributes.  See getCompleteClassFile().
+     */
+    private volatile boolean stripped;
+
     private Reference<CtMember.Cache> memberCache;
     private AccessorMaker accessors;
 
@@ -76,9 +82,19 @@ class CtClassType extends CtClass {
     private int uniqueNumberSeed;
 
     private boolean doPruning = ClassPool.doPruning;
+    private Set<MethodInfo> staleStackMaps;     // null unless deferred
     private int getCount;
     private static final int GET_THRESHOLD = 2;     // see compress()
 
+    /* For the eviction by ClassPool.  A parsed class file retains about
+     * three times the size of the class file.
+     */
+    boolean evictable;          // true if read from the class path
+    long lastUsed;
+    private int classfileSize;
+    private static final int PARSED_RATIO = 3;
+    private static final int OBJECT_SIZE = 256;
+
     CtClassType(String name, ClassPool cp) {
         super(name);
         classPool = cp;
@@ -89,6 +105,7 @@ class CtClassType extends CtClass {
         accessors = null;
         fieldInitializers = null;
         hiddenMethods = null;
+        staleStackMaps = null;
         uniqueNumberSeed = 0;
         getCount = 0;
     }
@@ -188,8 +205,8 @@ class CtClassType extends CtClass {
 
         if (rawClassfile != null) {
             try {
-                ClassFile cf = new ClassFile(new DataInputStream(
-                                             new ByteArrayInputStream(rawClassfile)));
+                ClassFile cf = new ClassFile(rawClassfile);
+                classfileSize = rawClassfile.length;
                 rawClassfile = null;
                 getCount = GET_THRESHOLD;
                 return setClassFile(cf);
@@ -205,8 +222,9 @@ class CtClassType extends CtClass {
             if (fin == null)
                 throw new NotFoundException(getName());
 
-            fin = new BufferedInputStream(fin);
-            ClassFile cf = new ClassFile(new DataInputStream(fin));
+            byte[] bytes = ClassPoolTail.readStream(fin);
+            ClassFile cf = new ClassFile(bytes);
+            classfileSize = bytes.length;
             if (!cf.getName().equals(qualifiedName))
                 throw new RuntimeException("cannot find " + qualifiedName + ": "
                         + cf.getName() + " found in "
@@ -274,6 +292,28 @@ class CtClassType extends CtClass {
         catch (IOException e) {}
     }
 
+    /* Returns true if ClassPool may discard this object.
+     * It can be read again from the class path.
+     */
+    boolean isEvictable() {
+        return evictable && !isModified() && !isFrozen();
+    }
+
+    /* Returns the estimated number of bytes retained by this object.
+     * The size is not known if the class file was not read from the
+     * class path.
+     */
+    long estimatedSize() {
+        if (classfile != null)
+            return OBJECT_SIZE + (long)PARSED_RATIO * classfileSize;
+
+        byte[] raw = rawClassfile;
+        if (raw != null)
+            return OBJECT_SIZE + raw.length;
+
+        return OBJECT_SIZE;
+    }
+
     private synchronized void removeClassFile() {
         if (classfile != null && !isModified() && hasMemberCache() == null)
             classfile = null;
@@ -283,12 +323,109 @@ class CtClassType extends CtClass {
      * Updates {@code classfile} if it is null.
      */
     private synchronized ClassFile setClassFile(ClassFile cf) {
-        if (classfile == null)
+        if (classfile == null) {
+            if (cf.getAttribute(TypeIndex.STRIPPED_TAG) != null)
+                stripped = true;
+
             classfile = cf;
+        }
 
         return classfile;
     }
 
+    /* Returns the class file including the method bodies and all
+     * the attributes.  If the class file was read from a TypeIndex,
+     * the original class file is read from the URL recorded in the index
+     * and replaces the stripped one.  The members keep the stripped
+     * method_info and field_info until completeMethodInfo() or
+     * completeFieldInfo() is called.
+     */
+    ClassFile getCompleteClassFile() {
+        ClassFile cf = getClassFile2();
+        if (!stripped)
+            return cf;
+
+        synchronized (this) {
+            cf = getClassFile3(false);
+            if (cf.getAttribute(TypeIndex.STRIPPED_TAG) == null)
+                return cf;
+
+            ClassFile complete = readOriginalClassFile();
+            rawClassfile = null;
+            classfile = complete;
+            return complete;
+        }
+    }
+
+    /* Reads the class file from the URL recorded in the type index.
+     */
+    private ClassFile readOriginalClassFile() {
+        InputStream fin = null;
+        try {
+            URL url = classPool.find(getName());
+            if (url == null)
+                throw new NotFoundException(getName());
+
+            fin = url.openStream();
+            byte[] bytes = ClassPoolTail.readStream(fin);
+            ClassFile cf = new ClassFile(bytes);
+            classfileSize = bytes.length;
+            if (!cf.getName().equals(qualifiedName))
+                throw new RuntimeException("cannot find " + qualifiedName + ": "
+                        + cf.getName() + " found in " + url);
+
+            return cf;
+        }
+        catch (NotFoundException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+        finally {
+            if (fin != null)
+                try {
+                    fin.close();
+                }
+                catch (IOException e) {}
+        }
+    }
+
+    @Override
+    MethodInfo completeMethodInfo(MethodInfo minfo) {
+        if (!stripped)
+            return minfo;
+
+        ClassFile cf = getCompleteClassFile();
+        if (minfo.getConstPool() == cf.getConstPool())
+            return minfo;
+
+        String name = minfo.getName();
+        String desc = minfo.getDescriptor();
+        for (MethodInfo m: cf.getMethods())
+            if (m.getName().equals(name) && m.getDescriptor().equals(desc))
+                return m;
+
+        return minfo;
+    }
+
+    @Override
+    FieldInfo completeFieldInfo(FieldInfo finfo) {
+        if (!stripped)
+            return finfo;
+
+        ClassFile cf = getCompleteClassFile();
+        if (finfo.getConstPool() == cf.getConstPool())
+            return finfo;
+
+        String name = finfo.getName();
+        for (FieldInfo f: cf.getFields())
+            if (f.getName().equals(name))
+                return f;
+
+        return finfo;
+    }
+
     @Override
     public ClassPool getClassPool() { return classPool; }
 
@@ -321,6 +458,10 @@ class CtClassType extends CtClass {
             throw new RuntimeException(msg);
         }
 
+        if (stripped)
+            throw new RuntimeException(getName()
+                                       + " class is read from a type index");
+
         wasChanged = true;
     }
 
@@ -376,7 +517,7 @@ class CtClassType extends CtClass {
     @Override
     public String getGenericSignature() {
         SignatureAttribute sa
-            = (SignatureAttribute)getClassFile2().getAttribute(SignatureAttribute.tag);
+            = (SignatureAttribute)getCompleteClassFile().getAttribute(SignatureAttribute.tag);
         return sa == null ? null : sa.getSignature();
     }
 
@@ -532,7 +673,7 @@ class CtClassType extends CtClass {
 
     @Override
     public boolean hasAnnotation(String annotationName) {
-        ClassFile cf = getClassFile2();
+        ClassFile cf = getCompleteClassFile();
         AnnotationsAttribute ainfo = (AnnotationsAttribute)
                 cf.getAttribute(AnnotationsAttribute.invisibleTag);
         AnnotationsAttribute ainfo2 = (AnnotationsAttribute)
@@ -582,7 +723,7 @@ class CtClassType extends CtClass {
 
     @Override
     public Object getAnnotation(Class<?> clz) throws ClassNotFoundException {
-        ClassFile cf = getClassFile2();
+        ClassFile cf = getCompleteClassFile();
         AnnotationsAttribute ainfo = (AnnotationsAttribute)
                 cf.getAttribute(AnnotationsAttribute.invisibleTag);
         AnnotationsAttribute ainfo2 = (AnnotationsAttribute)
@@ -638,7 +779,7 @@ class CtClassType extends CtClass {
     private Object[] getAnnotations(boolean ignoreNotFound)
         throws ClassNotFoundException
     {
-        ClassFile cf = getClassFile2();
+        ClassFile cf = getCompleteClassFile();
         AnnotationsAttribute ainfo = (AnnotationsAttribute)
                 cf.getAttribute(AnnotationsAttribute.invisibleTag);
         AnnotationsAttribute ainfo2 = (AnnotationsAttribute)
@@ -882,7 +1023,7 @@ class CtClassType extends CtClass {
 
                 // maybe anonymous or local class.
                 EnclosingMethodAttribute ema
-                    = (EnclosingMethodAttribute)cf.getAttribute(
+                    = (EnclosingMethodAttribute)getCompleteClassFile().getAttribute(
                                                 EnclosingMethodAttribute.tag);
                 if (ema != null)
                     return classPool.get(ema.className());
@@ -909,7 +1050,7 @@ class CtClassType extends CtClass {
                 else {
                     // maybe anonymous or local class.
                     EnclosingMethodAttribute ema
-                        = (EnclosingMethodAttribute)cf.getAttribute(
+                        = (EnclosingMethodAttribute)getCompleteClassFile().getAttribute(
                                                     EnclosingMethodAttribute.tag);
                     if (ema != null)
                         return true;
@@ -922,7 +1063,7 @@ class CtClassType extends CtClass {
     @Override
     public CtBehavior getEnclosingBehavior() throws NotFoundException
     {
-        ClassFile cf = getClassFile2();
+        ClassFile cf = getCompleteClassFile();
         EnclosingMethodAttribute ema
                 = (EnclosingMethodAttribute)cf.getAttribute(
                                                 EnclosingMethodAttribute.tag);
@@ -1196,7 +1337,7 @@ class CtClassType extends CtClass {
         while (cons != consTail) {
             cons = cons.next();
             CtConstructor cc = (CtConstructor)cons;
-            if (cc.getMethodInfo2().getDescriptor().equals(desc)
+            if (cc.getSignature().equals(desc)
                 && cc.isConstructor())
                 return cc;
         }
@@ -1304,7 +1445,7 @@ class CtClassType extends CtClass {
             while (mth != mthTail) {
                 mth = mth.next();
                 if (mth.getName().equals(name)
-                        && ((CtMethod)mth).getMethodInfo2().getDescriptor().equals(desc))
+                        && mth.getSignature().equals(desc))
                     return (CtMethod)mth;
             }
         }
@@ -1387,7 +1528,7 @@ class CtClassType extends CtClass {
         while (mth != mthTail) {
             mth = mth.next();
             if (mth.getName().equals(name)
-                    && ((CtMethod)mth).getMethodInfo2().getDescriptor().startsWith(desc))
+                    && mth.getSignature().startsWith(desc))
                 return (CtMethod)mth;
         }
 
@@ -1536,7 +1677,7 @@ class CtClassType extends CtClass {
     @Override
     public byte[] getAttribute(String name)
     {
-        AttributeInfo ai = getClassFile2().getAttribute(name);
+        AttributeInfo ai = getCompleteClassFile().getAttribute(name);
         if (ai == null)
             return null;
         return ai.get();
@@ -1596,26 +1737,10 @@ class CtClassType extends CtClass {
     {
         try {
             if (isModified()) {
-                checkPruned("toBytecode");
-                ClassFile cf = getClassFile2();
-                if (gcConstPool) {
-                    cf.compact();
-                    gcConstPool = false;
-                }
-
-                modifyClassConstructor(cf);
-                modifyConstructors(cf);
-                if (debugDump != null)
-                    dumpClassFile(cf);
-
+                ClassFile cf = prepareToWrite();
                 cf.write(out);
                 out.flush();
-                fieldInitializers = null;
-                if (doPruning) {
-                    // to save memory
-                    cf.prune();
-                    wasPruned = true;
-                }
+                doneWriting(cf);
             }
             else {
                 classPool.writeClassfile(getName(), out);
@@ -1634,6 +1759,57 @@ class CtClassType extends CtClass {
         }
     }
 
+    /* A modified class file is written into an array of the exact size.
+     */
+    @Override
+    public byte[] toBytecode() throws IOException, CannotCompileException {
+        if (!isModified())
+            return super.toBytecode();
+
+        try {
+            ClassFile cf = prepareToWrite();
+            byte[] bytes = cf.toBytecode();
+            doneWriting(cf);
+            getCount = 0;
+            wasFrozen = true;
+            return bytes;
+        }
+        catch (NotFoundException e) {
+            throw new CannotCompileException(e);
+        }
+        catch (IOException e) {
+            throw new CannotCompileException(e);
+        }
+    }
+
+    private ClassFile prepareToWrite()
+        throws CannotCompileException, NotFoundException, IOException
+    {
+        checkPruned("toBytecode");
+        rebuildStackMaps();
+        ClassFile cf = getCompleteClassFile();
+        if (gcConstPool) {
+            cf.compact();
+            gcConstPool = false;
+        }
+
+        modifyClassConstructor(cf);
+        modifyConstructors(cf);
+        if (debugDump != null)
+            dumpClassFile(cf);
+
+        return cf;
+    }
+
+    private void doneWriting(ClassFile cf) {
+        fieldInitializers = null;
+        if (doPruning) {
+            // to save memory
+            cf.prune();
+            wasPruned = true;
+        }
+    }
+
     private void dumpClassFile(ClassFile cf) throws IOException
     {
         DataOutputStream dump = makeFileOutput(debugDump);
@@ -1662,6 +1838,67 @@ class CtClassType extends CtClass {
         return prev;
     }
 
+    @Override
+    public boolean deferStackMaps(boolean defer)
+        throws CannotCompileException
+    {
+        boolean prev = staleStackMaps != null;
+        if (defer) {
+            if (!prev)
+                staleStackMaps = new HashSet<MethodInfo>();
+        }
+        else if (prev) {
+            rebuildStackMaps();
+            staleStackMaps = null;
+        }
+
+        return prev;
+    }
+
+    @Override
+    public void rebuildStackMaps() throws CannotCompileException
+    {
+        if (staleStackMaps == null || staleStackMaps.isEmpty())
+            return;
+
+        try {
+            ClassFile cf = getClassFile2();
+            for (MethodInfo minfo:cf.getMethods())
+                if (staleStackMaps.contains(minfo))
+                    minfo.rebuildStackMapIf6(classPool, cf);
+        }
+        catch (BadBytecode e) {
+            throw new CannotCompileException(e);
+        }
+
+        // removed methods are dropped as well
+        staleStackMaps.clear();
+    }
+
+    @Override
+    void rebuildStackMap(MethodInfo minfo) throws BadBytecode
+    {
+        if (staleStackMaps == null) {
+            minfo.rebuildStackMapIf6(classPool, getClassFile2());
+            return;
+        }
+
+        CodeAttribute ca = minfo.getCodeAttribute();
+        if (ca != null) {
+            // a stale map would only be updated by further edits in vain
+            ca.setAttribute((StackMapTable)null);
+            ca.setAttribute((StackMap)null);
+            staleStackMaps.add(minfo);
+        }
+    }
+
+    @Override
+    void flushStackMap(MethodInfo minfo) throws BadBytecode
+    {
+        if (staleStackMaps != null && staleStackMaps.remove(minfo))
+            minfo.rebuildStackMapIf6(classPool, getClassFile2());
+    }
+
     private void modifyClassConstructor(ClassFile cf)
         throws CannotCompileException, NotFoundException
     {
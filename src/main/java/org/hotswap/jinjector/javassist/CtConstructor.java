@@ -193,7 +193,7 @@ public final class CtConstructor extends CtBehavior {
      * calls another constructor of this class by <code>this()</code>. 
      */
     public boolean callsSuper() throws CannotCompileException {
-        CodeAttribute codeAttr = methodInfo.getCodeAttribute();
+        CodeAttribute codeAttr = getMethodInfo2().getCodeAttribute();
         if (codeAttr != null) {
             CodeIterator it = codeAttr.iterator();
             try {
@@ -243,7 +243,7 @@ public final class CtConstructor extends CtBehavior {
     public void setBody(CtConstructor src, ClassMap map)
         throws CannotCompileException
     {
-        setBody0(src.declaringClass, src.methodInfo,
+        setBody0(src.declaringClass, src.getMethodInfo2(),
                  declaringClass, methodInfo, map);
     }
 
@@ -275,7 +275,7 @@ public final class CtConstructor extends CtBehavior {
             iterator.skipConstructor();
             int pos = iterator.insertEx(b.get());
             iterator.insert(b.getExceptionTable(), pos);
-            methodInfo.rebuildStackMapIf6(cc.getClassPool(), cc.getClassFile2());
+            cc.rebuildStackMap(methodInfo);
         }
         catch (NotFoundException e) {
             throw new CannotCompileException(e);
@@ -96,7 +96,7 @@ public class CtField extends CtMember {
         FieldInfo fi = fieldInfo;
         fi.setAccessFlags(src.fieldInfo.getAccessFlags());
         ConstPool cp = fi.getConstPool();
-        List<AttributeInfo> attributes = src.fieldInfo.getAttributes();
+        List<AttributeInfo> attributes = src.getFieldInfo2().getAttributes();
         for (AttributeInfo ainfo : attributes) 
             fi.addAttribute(ainfo.copy(cp, null));
     }
@@ -203,7 +203,14 @@ public class CtField extends CtMember {
      * @see CtClass#isFrozen()
      * @see CtClass#prune()
      */
-    public FieldInfo getFieldInfo2() { return fieldInfo; }
+    public FieldInfo getFieldInfo2() {
+        // a class read from a type index lacks most attributes until they are needed
+        FieldInfo finfo = declaringClass.completeFieldInfo(fieldInfo);
+        if (finfo != fieldInfo)
+            fieldInfo = finfo;
+
+        return finfo;
+    }
 
     /**
      * Returns the class declaring the field.
@@ -361,7 +368,7 @@ public class CtField extends CtMember {
     @Override
     public String getGenericSignature() {
         SignatureAttribute sa
-            = (SignatureAttribute)fieldInfo.getAttribute(SignatureAttribute.tag);
+            = (SignatureAttribute)getFieldInfo2().getAttribute(SignatureAttribute.tag);
         return sa == null ? null : sa.getSignature();
     }
 
@@ -465,7 +472,7 @@ public class CtField extends CtMember {
      */
     @Override
     public byte[] getAttribute(String name) {
-        AttributeInfo ai = fieldInfo.getAttribute(name);
+        AttributeInfo ai = getFieldInfo2().getAttribute(name);
         if (ai == null)
             return null;
         return ai.get();
@@ -268,7 +268,7 @@ public final class CtMethod extends CtBehavior {
     public void setBody(CtMethod src, ClassMap map)
         throws CannotCompileException
     {
-        setBody0(src.declaringClass, src.methodInfo,
+        setBody0(src.declaringClass, src.getMethodInfo2(),
                  declaringClass, methodInfo, map);
     }
 
@@ -64,6 +64,17 @@ class CtNewClass extends CtClassType {
     public void toBytecode(DataOutputStream out)
         throws CannotCompileException, IOException
     {
+        addDefaultConstructors();
+        super.toBytecode(out);
+    }
+
+    @Override
+    public byte[] toBytecode() throws IOException, CannotCompileException {
+        addDefaultConstructors();
+        return super.toBytecode();
+    }
+
+    private void addDefaultConstructors() throws CannotCompileException {
         if (!hasConstructor)
             try {
                 inheritAllConstructors();
@@ -72,8 +83,6 @@ class CtNewClass extends CtClassType {
             catch (NotFoundException e) {
                 throw new CannotCompileException(e);
             }
-
-        super.toBytecode(out);
     }
 
     /**
@@ -0,0 +1,499 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package org.hotswap.jinjector.javassist;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.hotswap.jinjector.javassist.bytecode.ClassFile;
+import org.hotswap.jinjector.javassist.bytecode.CodeAttribute;
+import org.hotswap.jinjector.javassist.bytecode.ConstPool;
+import org.hotswap.jinjector.javassist.bytecode.Descriptor;
+import org.hotswap.jinjector.javassist.bytecode.FieldInfo;
+import org.hotswap.jinjector.javassist.bytecode.LocalVariableAttribute;
+import org.hotswap.jinjector.javassist.bytecode.MethodInfo;
+
+/**
+ * A cache of compiled source fragments.
+ *
+ * <p><code>insertBefore()</code>, <code>insertAfter()</code> and
+ * <code>setBody()</code> in <code>CtBehavior</code> run the compiler
+ * every time they are called.  This cache compiles a fragment once,
+ * keeps the bytecode together with a private constant pool holding
+ * the referenced constants and copies it into the constant pool of
+ * every further target in the same way as <code>ConstPool.copy()</code>
+ * does.  A fragment is looked up by its source code and by the shape of
+ * the target: the descriptor, the modifiers and the names of the local
+ * variables visible to the fragment.  So it is reused in other methods
+ * and in other classes; the references to the declaring class are
+ * renamed.
+ *
+ * <p>The compiled code also depends on the declaring class.  The compiler
+ * runs again if the new declaring class has another superclass or other
+ * interfaces, if it declares other members named by an identifier in
+ * the source code, if the source code names the original declaring class,
+ * or if a type referenced by the fragment would be obtained from
+ * a different <code>ClassPool</code>, for example, if the new target is in
+ * a class pool of another class loader that does not share the referenced
+ * classes.
+ *
+ * <p>The cache holds at most the given number of fragments and
+ * discards the least recently used ones.  It is thread-safe.
+ *
+ * @see CtBehavior#insertBefore(String)
+ * @see CtBehavior#insertAfter(String)
+ * @see CtBehavior#setBody(String)
+ */
+public class FragmentCache {
+    private static final int BEFORE = 0;
+    private static final int AFTER = 1;
+    private static final int BODY = 2;
+
+    private final Map<Key,Template> templates;
+    private long hits, misses;
+
+    /**
+     * Constructs a cache.
+     *
+     * @param maxEntries        the maximum number of cached fragments.
+     */
+    public FragmentCache(final int maxEntries) {
+        templates = new LinkedHashMap<Key,Template>(16, 0.75f, true) {
+            /** default serialVersionUID */
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key,Template> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Inserts bytecode at the beginning of the body.
+     *
+     * @param behavior  the modified method or constructor.
+     * @param src       the source code representing the inserted bytecode.
+     * @see CtBehavior#insertBefore(String)
+     */
+    public void insertBefore(CtBehavior behavior, String src)
+        throws CannotCompileException
+    {
+        behavior.insertBefore(compileBefore(behavior, src), true);
+    }
+
+    /**
+     * Inserts bytecode at the end of the body.
+     * The bytecode is not executed when an exception is thrown.
+     *
+     * @param behavior  the modified method or constructor.
+     * @param src       the source code representing the inserted bytecode.
+     * @see CtBehavior#insertAfter(String)
+     */
+    public void insertAfter(CtBehavior behavior, String src)
+        throws CannotCompileException
+    {
+        if (!behavior.hasReturn()) {
+            // nothing is compiled if the advice is never reached
+            behavior.insertAfter(src);
+            return;
+        }
+
+        behavior.insertAfter(compileAfter(behavior, src), true);
+    }
+
+    /**
+     * Inserts bytecode at the beginning and at the end of the body.
+     * It is equivalent to <code>insertBefore(behavior, before)</code>
+     * followed by <code>insertAfter(behavior, after)</code>
+     * except that the stack map is rebuilt only once.
+     * The inserted code at the beginning must not contain a return
+     * statement; otherwise the code inserted at the end would be executed
+     * when it returns.
+     *
+     * @param behavior  the modified method or constructor.
+     * @param before    the source code inserted at the beginning,
+     *                  or null.
+     * @param after     the source code inserted at the end, or null.
+     */
+    public void insertAround(CtBehavior behavior, String before, String after)
+        throws CannotCompileException
+    {
+        if (after == null) {
+            if (before != null)
+                insertBefore(behavior, before);
+
+            return;
+        }
+
+        if (before != null)
+            behavior.insertBefore(compileBefore(behavior, before),
+                                  false);
+
+        insertAfter(behavior, after);
+    }
+
+    /**
+     * Sets a method or constructor body.
+     *
+     * @param behavior  the modified method or constructor.
+     * @param src       the source code representing the body.
+     * @see CtBehavior#setBody(String)
+     */
+    public void setBody(CtBehavior behavior, String src)
+        throws CannotCompileException
+    {
+        Key key = makeKey(BODY, behavior, src);
+        CodeAttribute code = lookup(key, behavior);
+        if (code == null) {
+            code = behavior.compileBody(src, null, null);
+            store(key, behavior, code);
+        }
+
+        behavior.setBody(code);
+    }
+
+    /**
+     * Returns the number of fragments that were not compiled again.
+     */
+    public synchronized long getHitCount() { return hits; }
+
+    /**
+     * Returns the number of fragments that were compiled.
+     */
+    public synchronized long getMissCount() { return misses; }
+
+    private CodeAttribute compileBefore(CtBehavior behavior, String src)
+        throws CannotCompileException
+    {
+        Key key = makeKey(BEFORE, behavior, src);
+        CodeAttribute code = lookup(key, behavior);
+        if (code == null) {
+            code = behavior.compileBefore(src);
+            store(key, behavior, code);
+        }
+
+        return code;
+    }
+
+    private CodeAttribute compileAfter(CtBehavior behavior, String src)
+        throws CannotCompileException
+    {
+        Key key = makeKey(AFTER, behavior, src);
+        CodeAttribute code = lookup(key, behavior);
+        if (code == null) {
+            code = behavior.compileAfter(src);
+            store(key, behavior, code);
+        }
+
+        return code;
+    }
+
+    private static Key makeKey(int kind, CtBehavior behavior, String src)
+        throws CannotCompileException
+    {
+        MethodInfo minfo = behavior.getMethodInfo2();
+        CodeAttribute ca = minfo.getCodeAttribute();
+        if (ca == null)
+            throw new CannotCompileException("no method body");
+
+        // a body of a constructor calls super(), a class initializer not
+        String member = minfo.isMethod() ? "" : minfo.getName();
+        // only the advice at the end is compiled for the locals and
+        // the stack of the existing code
+        int maxStack = kind == AFTER ? ca.getMaxStack() : 0;
+        int maxLocals = kind == AFTER ? ca.getMaxLocals() : 0;
+        return new Key(kind, member, behavior.getSignature(),
+                       behavior.getModifiers(), maxStack, maxLocals,
+                       visibleVariables(ca, kind == BODY,
+                                        behavior.getDeclaringClass()),
+                       src);
+    }
+
+    /* The parameters and the local variables at the beginning that
+     * the compiler makes accessible by name.  The type of this is
+     * the declaring class, it is not part of the shape.
+     */
+    private static String visibleVariables(CodeAttribute ca, boolean body,
+                                           CtClass declaring)
+    {
+        LocalVariableAttribute va
+            = (LocalVariableAttribute)ca.getAttribute(LocalVariableAttribute.tag);
+        if (va == null || body)
+            return "";
+
+        String thisDesc = Descriptor.of(declaring);
+        StringBuilder sbuf = new StringBuilder();
+        int n = va.tableLength();
+        for (int i = 0; i < n; i++)
+            if (va.startPc(i) == 0) {
+                String desc = va.descriptor(i);
+                sbuf.append(va.index(i)).append(' ')
+                    .append(va.variableName(i)).append(' ')
+                    .append(desc.equals(thisDesc) ? "this" : desc)
+                    .append(';');
+            }
+
+        return sbuf.toString();
+    }
+
+    private CodeAttribute lookup(Key key, CtBehavior behavior)
+        throws CannotCompileException
+    {
+        Template t;
+        synchronized (this) {
+            t = templates.get(key);
+        }
+
+        CtClass declaring = behavior.getDeclaringClass();
+        if (t == null || !t.isValidFor(declaring)) {
+            synchronized (this) {
+                misses++;
+            }
+
+            return null;
+        }
+
+        synchronized (this) {
+            hits++;
+        }
+
+        Map<String,String> classnames = null;
+        if (!t.className.equals(declaring.getName()))
+            classnames = Collections.singletonMap(
+                             Descriptor.toJvmName(t.className),
+                             Descriptor.toJvmName(declaring.getName()));
+
+        try {
+            ConstPool cp = behavior.getMethodInfo2().getConstPool();
+            return (CodeAttribute)t.code.copy(cp, classnames);
+        }
+        catch (CodeAttribute.RuntimeCopyException e) {
+            throw new CannotCompileException(e);
+        }
+    }
+
+    private void store(Key key, CtBehavior behavior, CodeAttribute code)
+        throws CannotCompileException
+    {
+        CtClass declaring = behavior.getDeclaringClass();
+        try {
+            ConstPool cp = new ConstPool(declaring.getName());
+            Template t = new Template((CodeAttribute)code.copy(cp, null),
+                                      declaring, key.src);
+            synchronized (this) {
+                templates.put(key, t);
+            }
+        }
+        catch (CodeAttribute.RuntimeCopyException e) {
+            throw new CannotCompileException(e);
+        }
+    }
+
+    static final class Key {
+        private final int kind;
+        private final String member;
+        private final String descriptor;
+        private final int modifiers;
+        private final int maxStack;
+        private final int maxLocals;
+        private final String variables;
+        private final String src;
+        private final int hash;
+
+        Key(int kind, String member, String descriptor, int modifiers,
+            int maxStack, int maxLocals, String variables, String src)
+        {
+            this.kind = kind;
+            this.member = member;
+            this.descriptor = descriptor;
+            this.modifiers = modifiers;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.variables = variables;
+            this.src = src;
+            int h = kind;
+            h = 31 * h + descriptor.hashCode();
+            h = 31 * h + modifiers;
+            h = 31 * h + maxStack;
+            h = 31 * h + maxLocals;
+            h = 31 * h + variables.hashCode();
+            this.hash = 31 * h + src.hashCode();
+        }
+
+        @Override
+        public int hashCode() { return hash; }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key k = (Key)obj;
+            return hash == k.hash && kind == k.kind
+                   && modifiers == k.modifiers && maxStack == k.maxStack
+                   && maxLocals == k.maxLocals && member.equals(k.member)
+                   && descriptor.equals(k.descriptor)
+                   && variables.equals(k.variables) && src.equals(k.src);
+        }
+    }
+
+    /* A compiled fragment.  It records the declaring class it was
+     * compiled in: the supertypes, the members named in the source code
+     * and the referenced types together with the class pools that
+     * supplied them.
+     */
+    static final class Template {
+        final CodeAttribute code;
+        final String className;
+        private final String superName;
+        private final String[] interfaceNames;
+        private final Set<String> identifiers;
+        private final String members;
+        // true if the source code may refer to the declaring class by name
+        private final boolean namesClass;
+        private final String[] typeNames;
+        private final ClassPool[] typePools;
+
+        Template(CodeAttribute code, CtClass declaring, String src) {
+            this.code = code;
+            className = declaring.getName();
+            ClassFile cf = declaring.getClassFile2();
+            superName = cf.getSuperclass();
+            interfaceNames = cf.getInterfaces();
+            identifiers = identifiers(src);
+            members = members(cf, identifiers);
+            String simpleName = className.substring(className.lastIndexOf('.') + 1);
+            namesClass = identifiers.contains(simpleName)
+                         || identifiers.contains(simpleName.substring(
+                                                 simpleName.lastIndexOf('$') + 1));
+
+            Set<String> names = new LinkedHashSet<String>();
+            collectTypeNames(code.getConstPool(), names);
+            try {
+                for (CtClass c = declaring.getSuperclass(); c != null;
+                     c = c.getSuperclass())
+                    names.add(c.getName());
+            }
+            catch (NotFoundException e) {}
+
+            names.addAll(Arrays.asList(interfaceNames));
+            names.remove(className);
+            typeNames = names.toArray(new String[names.size()]);
+            typePools = new ClassPool[typeNames.length];
+            ClassPool pool = declaring.getClassPool();
+            for (int i = 0; i < typeNames.length; i++)
+                typePools[i] = definingPool(pool, typeNames[i]);
+        }
+
+        boolean isValidFor(CtClass declaring) {
+            if (namesClass && !className.equals(declaring.getName()))
+                return false;
+
+            ClassFile cf = declaring.getClassFile2();
+            if (!Objects.equals(superName, cf.getSuperclass())
+                || !Arrays.equals(interfaceNames, cf.getInterfaces())
+                || !members.equals(members(cf, identifiers)))
+                return false;
+
+            ClassPool pool = declaring.getClassPool();
+            for (int i = 0; i < typeNames.length; i++)
+                if (definingPool(pool, typeNames[i]) != typePools[i])
+                    return false;
+
+            return true;
+        }
+
+        private static ClassPool definingPool(ClassPool pool, String name) {
+            CtClass c = pool.getOrNull(name);
+            return c == null ? null : c.getClassPool();
+        }
+
+        private static Set<String> identifiers(String src) {
+            Set<String> ids = new HashSet<String>();
+            int n = src.length();
+            for (int i = 0; i < n; i++)
+                if (Character.isJavaIdentifierStart(src.charAt(i))) {
+                    int j = i + 1;
+                    while (j < n && Character.isJavaIdentifierPart(src.charAt(j)))
+                        j++;
+
+                    ids.add(src.substring(i, j));
+                    i = j - 1;
+                }
+
+            return ids;
+        }
+
+        /* The declared fields and methods that an identifier in
+         * the source code may refer to, in the order of the class file.
+         */
+        private static String members(ClassFile cf, Set<String> ids) {
+            StringBuilder sbuf = new StringBuilder();
+            for (FieldInfo f: cf.getFields())
+                if (ids.contains(f.getName()))
+                    sbuf.append(f.getName()).append(' ')
+                        .append(f.getDescriptor()).append(' ')
+                        .append(f.getAccessFlags()).append(';');
+
+            for (MethodInfo m: cf.getMethods())
+                if (ids.contains(m.getName()))
+                    sbuf.append(m.getName()).append(' ')
+                        .append(m.getDescriptor()).append(' ')
+                        .append(m.getAccessFlags()).append(';');
+
+            return sbuf.toString();
+        }
+
+        private static void collectTypeNames(ConstPool cp, Set<String> names) {
+            int size = cp.getSize();
+            for (int i = 1; i < size; i++) {
+                int tag = cp.getTag(i);
+                if (tag == ConstPool.CONST_Class)
+                    addTypeName(cp.getClassInfo(i), names);
+                else if (tag == ConstPool.CONST_NameAndType) {
+                    String desc = cp.getUtf8Info(cp.getNameAndTypeDescriptor(i));
+                    for (int j = 0; j < desc.length(); j++)
+                        if (desc.charAt(j) == 'L') {
+                            int k = desc.indexOf(';', j);
+                            addTypeName(desc.substring(j + 1, k).replace('/', '.'),
+                                        names);
+                            j = k;
+                        }
+                }
+            }
+        }
+
+        private static void addTypeName(String name, Set<String> names) {
+            if (name.charAt(0) == '[') {
+                int i = name.lastIndexOf('[') + 1;
+                if (name.charAt(i) != 'L')
+                    return;     // an array of a primitive type
+
+                name = name.substring(i + 1, name.length() - 1);
+            }
+
+            names.add(name);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package org.hotswap.jinjector.javassist;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A class search-path representing the modules of the run-time image.
+ *
+ * <p>Class files are read directly from the <code>jrt:/</code> file
+ * system.  The package of a class name is looked up in an index of the
+ * modules in the boot layer, so that only the module containing
+ * the package is examined.  The directory of a package is listed when
+ * it is searched first, so that a class name that does not exist
+ * is rejected without accessing the file system.  It is faster than obtaining the class files
+ * of the JDK by <code>getResourceAsStream()</code> through
+ * a <code>LoaderClassPath</code> or a <code>ClassClassPath</code>.
+ *
+ * <p>This class path is available only on Java 9 or later.
+ *
+ * @see ClassPool#insertClassPath(ClassPath)
+ * @see ClassPool#appendClassPath(ClassPath)
+ * @see LoaderClassPath
+ */
+public class JrtClassPath implements ClassPath {
+    private final Map<String,Directory> packages;
+
+    /**
+     * Creates a search path representing all the modules
+     * in the boot layer.
+     *
+     * @throws NotFoundException    if the run-time image is not available.
+     */
+    public JrtClassPath() throws NotFoundException {
+        this(null, false);
+    }
+
+    /**
+     * Creates a search path representing the modules in the boot layer
+     * that are visible to the given class loader, that is, the modules
+     * defined by the class loader or by its parents.
+     *
+     * @param cl        the class loader.  If it is null, only the modules
+     *                  defined by the bootstrap class loader are
+     *                  included.
+     * @throws NotFoundException    if the run-time image is not available.
+     */
+    public JrtClassPath(ClassLoader cl) throws NotFoundException {
+        this(cl, true);
+    }
+
+    private JrtClassPath(ClassLoader cl, boolean visibleOnly)
+        throws NotFoundException
+    {
+        FileSystem jrt;
+        try {
+            jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        }
+        catch (RuntimeException e) {
+            throw new NotFoundException("jrt:/ is not available", e);
+        }
+
+        packages = new HashMap<String,Directory>();
+        for (Module m: ModuleLayer.boot().modules())
+            if (!visibleOnly || isVisible(m.getClassLoader(), cl))
+                for (String pkg: m.getPackages()) {
+                    String path = m.getName() + '/' + pkg.replace('.', '/');
+                    packages.put(pkg, new Directory(jrt.getPath("/modules/" + path),
+                                                    "jrt:/" + path + '/'));
+                }
+    }
+
+    /* Returns true if the class loader defining a module is
+     * the given loader or one of its parents.
+     */
+    private static boolean isVisible(ClassLoader definer, ClassLoader cl) {
+        if (definer == null)
+            return true;
+
+        for (; cl != null; cl = cl.getParent())
+            if (cl == definer)
+                return true;
+
+        return false;
+    }
+
+    /* Returns the directory of the package of the class
+     * or null if the class file does not exist.
+     */
+    private Directory lookup(String classname) {
+        int i = classname.lastIndexOf('.');
+        if (i < 0)
+            return null;        // the default package is never in a module
+
+        Directory dir = packages.get(classname.substring(0, i));
+        if (dir == null || !dir.contains(filename(classname, i)))
+            return null;
+
+        return dir;
+    }
+
+    private static String filename(String classname, int i) {
+        return classname.substring(i + 1) + ".class";
+    }
+
+    @Override
+    public InputStream openClassfile(String classname) throws NotFoundException {
+        Directory dir = lookup(classname);
+        if (dir == null)
+            return null;
+
+        String filename = filename(classname, classname.lastIndexOf('.'));
+        try {
+            // the jrt:/ file system reads the whole entry into memory
+            return Files.newInputStream(dir.path.resolve(filename));
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+        catch (IOException e) {
+            throw new NotFoundException("broken jrt:/ entry?: " + classname, e);
+        }
+    }
+
+    @Override
+    public URL find(String classname) {
+        Directory dir = lookup(classname);
+        if (dir == null)
+            return null;
+
+        try {
+            return new URL(dir.url + filename(classname, classname.lastIndexOf('.')));
+        }
+        catch (MalformedURLException e) {}
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "jrt:/";
+    }
+
+    /* The directory of a package in the run-time image.  It is listed
+     * when it is searched first.
+     */
+    static final class Directory {
+        final Path path;
+        final String url;
+        private volatile Set<String> filenames;
+
+        Directory(Path path, String url) {
+            this.path = path;
+            this.url = url;
+        }
+
+        boolean contains(String filename) {
+            Set<String> names = filenames;
+            if (names == null) {
+                names = new HashSet<String>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                    for (Path p: stream)
+                        names.add(p.getFileName().toString());
+                }
+                catch (IOException e) {}
+
+                filenames = names;
+            }
+
+            return names.contains(filename);
+        }
+    }
+}
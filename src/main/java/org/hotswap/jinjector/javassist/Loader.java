@@ -21,8 +21,10 @@ import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.security.ProtectionDomain;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Vector;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.hotswap.jinjector.javassist.bytecode.ClassFile;
 
@@ -135,10 +137,29 @@ import org.hotswap.jinjector.javassist.bytecode.ClassFile;
  * an exception since it accepts an instance of only the
  * <code>java.lang.String</code> loaded by the parent class loader.
  *
+ * <p><b>Note 3:</b>
+ *
+ * <p>This class loader is parallel capable.  Classes with different
+ * names may be loaded by several threads at the same time, so
+ * the <code>Translator</code> and the <code>ClassPool</code> must be
+ * thread-safe.  A subclass is not parallel capable unless it calls
+ * <code>ClassLoader.registerAsParallelCapable()</code> in its static
+ * initializer.
+ *
+ * <p>The output of the <code>Translator</code> is not cached.
+ * A class obtained by <code>findClass()</code> is defined once and the JVM
+ * returns it from <code>findLoadedClass()</code> later, so
+ * <code>onLoad()</code> is called only once for that class.  A class that
+ * was not found is searched again at every request since it may be added
+ * to the <code>ClassPool</code> or its class path later.
+ *
  * @see javassist.ClassPool
  * @see javassist.Translator
  */
 public class Loader extends ClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
 
     /**
      * A simpler class loader.
@@ -180,8 +201,8 @@ public class Loader extends ClassLoader {
         }
     }
 
-    private HashMap<String,ClassLoader> notDefinedHere; // must be atomic.
-    private Vector<String> notDefinedPackages; // must be atomic.
+    private Map<String,ClassLoader> notDefinedHere;
+    private List<String> notDefinedPackages;
     private ClassPool source;
     private Translator translator;
     private ProtectionDomain domain;
@@ -228,8 +249,8 @@ public class Loader extends ClassLoader {
     }
 
     private void init(ClassPool cp) {
-        notDefinedHere = new HashMap<String,ClassLoader>();
-        notDefinedPackages = new Vector<String>();
+        notDefinedHere = new ConcurrentHashMap<String,ClassLoader>();
+        notDefinedPackages = new CopyOnWriteArrayList<String>();
         source = cp;
         translator = null;
         domain = null;
@@ -246,7 +267,7 @@ public class Loader extends ClassLoader {
      */
     public void delegateLoadingOf(String classname) {
         if (classname.endsWith("."))
-            notDefinedPackages.addElement(classname);
+            notDefinedPackages.add(classname);
         else
             notDefinedHere.put(classname, this);
     }
@@ -340,8 +361,7 @@ public class Loader extends ClassLoader {
     @Override
     protected Class<?> loadClass(String name, boolean resolve)
         throws ClassFormatError, ClassNotFoundException {
-        name = name.intern();
-        synchronized (name) {
+        synchronized (getClassLoadingLock(name)) {
             Class<?> c = findLoadedClass(name);
             if (c == null)
                 c = loadClassByDelegation(name);
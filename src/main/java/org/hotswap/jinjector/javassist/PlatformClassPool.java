@@ -0,0 +1,101 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package org.hotswap.jinjector.javassist;
+
+/**
+ * The read-only class pool returned by <code>ClassPool.getPlatformPool()</code>.
+ * Its search path is fixed except for a type index searched first,
+ * classes cannot be made in it and every <code>CtClass</code> object
+ * is frozen when it is created.
+ *
+ * @see ClassPool#getPlatformPool()
+ */
+final class PlatformClassPool extends ClassPool {
+    private TypeIndex typeIndex;
+
+    PlatformClassPool() {
+        super(null);
+        ClassLoader cl = ClassLoader.getPlatformClassLoader();
+        try {
+            source.appendClassPath(new JrtClassPath(cl));
+        }
+        catch (NotFoundException e) {
+            source.appendClassPath(new LoaderClassPath(cl));
+        }
+    }
+
+    synchronized void setTypeIndex(TypeIndex index) {
+        if (typeIndex != null)
+            source.removeClassPath(typeIndex);
+
+        typeIndex = index;
+        if (index != null)
+            source.insertClassPath(index);
+    }
+
+    @Override
+    protected CtClass createCtClass(String classname, boolean useCache) {
+        CtClass clazz = super.createCtClass(classname, useCache);
+        if (clazz != null)
+            clazz.freeze();
+
+        return clazz;
+    }
+
+    @Override
+    protected void cacheCtClass(String classname, CtClass c, boolean dynamic) {
+        if (dynamic)
+            throw new RuntimeException(classname
+                                       + ": the platform class pool is read-only");
+
+        super.cacheCtClass(classname, c, dynamic);
+    }
+
+    @Override
+    public ClassPath insertClassPath(ClassPath cp) {
+        throw readOnly();
+    }
+
+    @Override
+    public ClassPath insertClassPath(String pathname) {
+        throw readOnly();
+    }
+
+    @Override
+    public ClassPath appendClassPath(ClassPath cp) {
+        throw readOnly();
+    }
+
+    @Override
+    public ClassPath appendClassPath(String pathname) {
+        throw readOnly();
+    }
+
+    @Override
+    public ClassPath appendSystemPath() {
+        throw readOnly();
+    }
+
+    @Override
+    public void removeClassPath(ClassPath cp) {
+        throw readOnly();
+    }
+
+    private static RuntimeException readOnly() {
+        return new RuntimeException("the platform class pool is read-only");
+    }
+}
@@ -58,6 +58,10 @@ public interface Translator {
      * the <code>Loader</code> can read it after <code>onLoad()</code>
      * returns.
      *
+     * <p>Since <code>Loader</code> is parallel capable, this method
+     * may be invoked by several threads at the same time
+     * for different classes.
+     *
      * @param pool      the <code>ClassPool</code> that this translator
      *                          should use.
      * @param classname     the name of the class being loaded.
@@ -0,0 +1,331 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package org.hotswap.jinjector.javassist;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hotswap.jinjector.javassist.bytecode.AttributeInfo;
+import org.hotswap.jinjector.javassist.bytecode.ClassFile;
+import org.hotswap.jinjector.javassist.bytecode.ConstantAttribute;
+import org.hotswap.jinjector.javassist.bytecode.FieldInfo;
+import org.hotswap.jinjector.javassist.bytecode.InnerClassesAttribute;
+import org.hotswap.jinjector.javassist.bytecode.MethodInfo;
+
+/**
+ * A memory-mapped index of class declarations.
+ *
+ * <p>The index holds a stripped copy of every class file: the class
+ * hierarchy, the inner classes and the names, descriptors and modifiers
+ * of the fields and methods, together with the values of constant
+ * fields.  Method bodies and all other attributes are removed and
+ * the constant pool is compacted.  This is what the Javassist compiler
+ * needs for resolving types and members, so the classes of a class pool
+ * searching the index first are read and parsed much faster.
+ * A stripped class file carries an attribute named
+ * {@link #STRIPPED_TAG}.  If the method bodies or the removed attributes
+ * of a <code>CtClass</code> object obtained from the index are requested,
+ * the original class file is read from the URL recorded in the index.
+ * Such a <code>CtClass</code> object cannot be modified.
+ *
+ * <p>The index is written by <code>write()</code> with the classes
+ * cached by a class pool, for example, by the platform class pool
+ * at the end of a run, and opened by <code>open()</code> in the later
+ * runs.  It records a key given by the caller, which should identify
+ * the source of the classes, for example, the version and the location
+ * of the JDK.  An index with another key or format is not opened.
+ *
+ * @see ClassPool#setPlatformTypeIndex(TypeIndex)
+ */
+public final class TypeIndex implements ClassPath {
+    private static final int MAGIC = 0x4a494458;    // JIDX
+    private static final int FORMAT = 2;
+
+    /**
+     * The name of the attribute marking a stripped class file.
+     */
+    public static final String STRIPPED_TAG = "org.hotswap.jinjector.TypeIndex.Stripped";
+
+    private final ByteBuffer data;
+    private final Map<String,Entry> entries;
+
+    private TypeIndex(ByteBuffer data, Map<String,Entry> entries) {
+        this.data = data;
+        this.entries = entries;
+    }
+
+    /**
+     * Opens an index file.
+     *
+     * @param file      the index file.
+     * @param key       the key identifying the source of the classes.
+     * @return null if the file was written with another key or
+     *              in another format.
+     */
+    public static TypeIndex open(File file, String key) throws IOException {
+        ByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buf.remaining() < 12 || buf.getInt() != MAGIC
+            || buf.getInt() != FORMAT)
+            return null;
+
+        byte[] header = new byte[buf.getInt()];
+        buf.get(header);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        if (!in.readUTF().equals(key))
+            return null;
+
+        int n = in.readInt();
+        Map<String,Entry> entries = new HashMap<String,Entry>(n * 2);
+        for (int i = 0; i < n; i++) {
+            String name = in.readUTF();
+            String url = in.readUTF();
+            entries.put(name, new Entry(url, in.readInt(), in.readInt()));
+        }
+
+        return new TypeIndex(buf.slice(), entries);
+    }
+
+    /**
+     * Writes an index of the classes cached by the class pool.
+     * Only the classes that the class pool has read from its search path
+     * are written.  They are read again from the search path.
+     * The classes in the previous index are also written.
+     *
+     * @param out       the output stream.  It is not closed.
+     * @param key       the key identifying the source of the classes.
+     * @param cp        the class pool.
+     * @param previous  the previous index or null.
+     * @return the number of the written classes.
+     */
+    public static int write(OutputStream out, String key, ClassPool cp,
+                            TypeIndex previous)
+        throws IOException
+    {
+        List<String> names = new ArrayList<String>();
+        List<String> urls = new ArrayList<String>();
+        List<byte[]> classfiles = new ArrayList<byte[]>();
+        Iterator<CtClass> it = cp.classes.values().iterator();
+        while (it.hasNext()) {
+            CtClass c = it.next();
+            if (!(c instanceof CtClassType) || !((CtClassType)c).evictable)
+                continue;       // not read from the search path
+
+            String name = c.getName();
+            byte[] classfile = strip(cp, name);
+            URL url = cp.find(name);
+            if (classfile != null && url != null) {
+                names.add(name);
+                urls.add(url.toString());
+                classfiles.add(classfile);
+            }
+        }
+
+        if (previous != null) {
+            Set<String> written = new HashSet<String>(names);
+            for (Map.Entry<String,Entry> e: previous.entries.entrySet())
+                if (!written.contains(e.getKey())) {
+                    names.add(e.getKey());
+                    urls.add(e.getValue().url);
+                    classfiles.add(previous.read(e.getValue()));
+                }
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream hout = new DataOutputStream(header);
+        hout.writeUTF(key);
+        hout.writeInt(names.size());
+        int offset = 0;
+        for (int i = 0; i < names.size(); i++) {
+            hout.writeUTF(names.get(i));
+            hout.writeUTF(urls.get(i));
+            hout.writeInt(offset);
+            hout.writeInt(classfiles.get(i).length);
+            offset += classfiles.get(i).length;
+        }
+
+        hout.flush();
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeInt(FORMAT);
+        dout.writeInt(header.size());
+        header.writeTo(dout);
+        for (byte[] classfile: classfiles)
+            dout.write(classfile);
+
+        dout.flush();
+        return names.size();
+    }
+
+    /* Reads the class file from the search path of the class pool
+     * and removes everything except the declarations.
+     */
+    private static byte[] strip(ClassPool cp, String classname)
+        throws IOException
+    {
+        InputStream ins;
+        try {
+            ins = cp.openClassfile(classname);
+        }
+        catch (NotFoundException e) {
+            return null;
+        }
+
+        if (ins == null)
+            return null;
+
+        ClassFile cf;
+        try {
+            cf = new ClassFile(new DataInputStream(ins));
+        }
+        finally {
+            ins.close();
+        }
+
+        Iterator<AttributeInfo> attrs = cf.getAttributes().iterator();
+        while (attrs.hasNext())
+            if (!(attrs.next() instanceof InnerClassesAttribute))
+                attrs.remove();
+
+        for (FieldInfo finfo: cf.getFields()) {
+            attrs = finfo.getAttributes().iterator();
+            while (attrs.hasNext())
+                if (!(attrs.next() instanceof ConstantAttribute))
+                    attrs.remove();
+        }
+
+        for (MethodInfo minfo: cf.getMethods())
+            minfo.getAttributes().clear();
+
+        cf.addAttribute(new AttributeInfo(cf.getConstPool(), STRIPPED_TAG, new byte[0]));
+        cf.compact();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        cf.write(out);
+        out.flush();
+        return bout.toByteArray();
+    }
+
+    /**
+     * Returns the number of the classes in this index.
+     */
+    public int size() { return entries.size(); }
+
+    /**
+     * Returns true if this index contains the class.
+     *
+     * @param classname     a fully-qualified class name.
+     */
+    public boolean contains(String classname) {
+        return entries.containsKey(classname);
+    }
+
+    /**
+     * Returns true if this index contains all the classes that
+     * the class pool has read from its search path.
+     * If it does not, a new index should be written.
+     */
+    public boolean containsAll(ClassPool cp) {
+        Iterator<CtClass> it = cp.classes.values().iterator();
+        while (it.hasNext()) {
+            CtClass c = it.next();
+            if (c instanceof CtClassType && ((CtClassType)c).evictable
+                && !contains(c.getName()))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Obtains the stripped class file from the index.
+     */
+    @Override
+    public InputStream openClassfile(String classname) {
+        Entry e = entries.get(classname);
+        if (e == null)
+            return null;
+
+        return new ByteArrayInputStream(read(e));
+    }
+
+    private byte[] read(Entry e) {
+        ByteBuffer buf = data.duplicate();
+        buf.position(e.offset);
+        byte[] classfile = new byte[e.length];
+        buf.get(classfile);
+        return classfile;
+    }
+
+    /**
+     * Returns the URL of the original class file.
+     *
+     * @return null if the class is not in the index.
+     */
+    @Override
+    public URL find(String classname) {
+        Entry e = entries.get(classname);
+        if (e == null)
+            return null;
+
+        try {
+            return new URL(e.url);
+        }
+        catch (MalformedURLException ex) {}
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "type index (" + entries.size() + " classes)";
+    }
+
+    static final class Entry {
+        final String url;
+        final int offset;
+        final int length;
+
+        Entry(String url, int offset, int length) {
+            this.url = url;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
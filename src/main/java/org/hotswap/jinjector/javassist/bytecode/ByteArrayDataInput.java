@@ -0,0 +1,102 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package org.hotswap.jinjector.javassist.bytecode;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A data input stream reading a byte array without copying it.
+ * The position in the array is available so that a part of the input
+ * can be skipped and recorded as a slice of the array.
+ */
+final class ByteArrayDataInput extends DataInputStream {
+    private final Source source;
+
+    ByteArrayDataInput(byte[] buf, int offset, int length) {
+        this(new Source(buf, offset, length));
+    }
+
+    private ByteArrayDataInput(Source src) {
+        super(src);
+        source = src;
+    }
+
+    /**
+     * Returns the underlying array.
+     */
+    byte[] array() { return source.buf; }
+
+    /**
+     * Returns the index of the next byte in the underlying array.
+     */
+    int position() { return source.pos; }
+
+    /**
+     * Skips exactly <code>n</code> bytes.
+     */
+    void skip(int n) throws IOException {
+        if (n < 0 || n > source.end - source.pos)
+            throw new EOFException();
+
+        source.pos += n;
+    }
+
+    /* Unlike ByteArrayInputStream, the methods are not synchronized.
+     */
+    static final class Source extends InputStream {
+        final byte[] buf;
+        final int end;
+        int pos;
+
+        Source(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() {
+            return pos < end ? buf[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos >= end)
+                return len == 0 ? 0 : -1;
+
+            int n = Math.min(len, end - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long k = Math.max(0, Math.min(n, end - pos));
+            pos += (int)k;
+            return k;
+        }
+
+        @Override
+        public int available() {
+            return end - pos;
+        }
+    }
+}
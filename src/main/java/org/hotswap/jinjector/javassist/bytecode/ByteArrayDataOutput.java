@@ -0,0 +1,84 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package org.hotswap.jinjector.javassist.bytecode;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A data output stream writing into a byte array of a given size.
+ * If the size is exact, the array is returned without copying.
+ *
+ * @see ByteArrayDataInput
+ */
+final class ByteArrayDataOutput extends DataOutputStream {
+    private final Sink sink;
+
+    ByteArrayDataOutput(int size) {
+        this(new Sink(size));
+    }
+
+    private ByteArrayDataOutput(Sink s) {
+        super(s);
+        sink = s;
+    }
+
+    /**
+     * Returns the written bytes.
+     */
+    byte[] toByteArray() {
+        byte[] buf = sink.buf;
+        if (sink.count == buf.length)
+            return buf;
+        else
+            return Arrays.copyOf(buf, sink.count);
+    }
+
+    /* Unlike ByteArrayOutputStream, the methods are not synchronized.
+     * The array grows only if the given size was too small.
+     */
+    static final class Sink extends OutputStream {
+        byte[] buf;
+        int count;
+
+        Sink(int size) {
+            buf = new byte[size];
+            count = 0;
+        }
+
+        private void ensure(int n) {
+            if (count + n > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + n));
+        }
+
+        @Override
+        public void write(int b) {
+            if (count == buf.length)
+                ensure(1);
+
+            buf[count++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+    }
+}
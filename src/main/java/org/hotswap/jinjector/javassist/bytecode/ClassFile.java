@@ -19,6 +19,7 @@ package org.hotswap.jinjector.javassist.bytecode;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
@@ -244,6 +245,40 @@ public final class ClassFile {
         read(in);
     }
 
+    /**
+     * Constructs a class file from a byte array.
+     * The array is not copied.  The attributes of the methods, such as
+     * <code>Code</code> attributes, are read when they are accessed;
+     * until then, they are slices of the given array.
+     * So the array must not be modified while this object is used.
+     *
+     * @param classfile     the class file.
+     */
+    public ClassFile(byte[] classfile) throws IOException {
+        read(new ByteArrayDataInput(classfile, 0, classfile.length));
+    }
+
+    /**
+     * Constructs a class file from the remaining bytes of a buffer.
+     * The position of the buffer is not changed.  If the buffer is backed
+     * by an accessible array, the array is not copied and it must not be
+     * modified while this object is used.
+     *
+     * @param classfile     the class file.
+     * @see #ClassFile(byte[])
+     */
+    public ClassFile(ByteBuffer classfile) throws IOException {
+        if (classfile.hasArray())
+            read(new ByteArrayDataInput(classfile.array(),
+                                        classfile.arrayOffset() + classfile.position(),
+                                        classfile.remaining()));
+        else {
+            byte[] bytes = new byte[classfile.remaining()];
+            classfile.duplicate().get(bytes);
+            read(new ByteArrayDataInput(bytes, 0, bytes.length));
+        }
+    }
+
     /**
      * Constructs a class file including no members.
      *
@@ -571,13 +606,13 @@ public final class ClassFile {
         for (MethodInfo minfo:methods) {
             String desc = minfo.getDescriptor();
             Descriptor.rename(desc, classnames);
-            AttributeInfo.getRefClasses(minfo.getAttributes(), classnames);
+            AttributeInfo.getRefClasses(minfo.getAttributesToRead(), classnames);
         }
 
         for (FieldInfo finfo:fields) {
             String desc = finfo.getDescriptor();
             Descriptor.rename(desc, classnames);
-            AttributeInfo.getRefClasses(finfo.getAttributes(), classnames);
+            AttributeInfo.getRefClasses(finfo.getAttributesToRead(), classnames);
         }
     }
 
@@ -867,13 +902,21 @@ public final class ClassFile {
         ConstPool cp = constPool;
         n = in.readUnsignedShort();
         fields = new ArrayList<FieldInfo>();
-        for (i = 0; i < n; ++i)
-            addField2(new FieldInfo(cp, in));
+        if (in instanceof ByteArrayDataInput)
+            for (i = 0; i < n; ++i)
+                addField2(new FieldInfo(cp, (ByteArrayDataInput)in));
+        else
+            for (i = 0; i < n; ++i)
+                addField2(new FieldInfo(cp, in));
 
         n = in.readUnsignedShort();
         methods = new ArrayList<MethodInfo>();
-        for (i = 0; i < n; ++i)
-            addMethod2(new MethodInfo(cp, in));
+        if (in instanceof ByteArrayDataInput)
+            for (i = 0; i < n; ++i)
+                addMethod2(new MethodInfo(cp, (ByteArrayDataInput)in));
+        else
+            for (i = 0; i < n; ++i)
+                addMethod2(new MethodInfo(cp, in));
 
         attributes = new ArrayList<AttributeInfo>();
         n = in.readUnsignedShort();
@@ -883,6 +926,37 @@ public final class ClassFile {
         thisclassname = constPool.getClassInfo(thisClass);
     }
 
+    /**
+     * Returns the class file represented by this object.
+     * Its length is computed first, so that it is written into
+     * a byte array of the exact size.
+     *
+     * @see #write(DataOutputStream)
+     */
+    public byte[] toBytecode() throws IOException {
+        ByteArrayDataOutput out = new ByteArrayDataOutput(length());
+        write(out);
+        return out.toByteArray();
+    }
+
+    /* Returns the length in bytes of the class file written by write().
+     */
+    int length() {
+        int len = 8 + constPool.length() + 8;
+        if (interfaces != null)
+            len += interfaces.length * 2;
+
+        len += 2;
+        for (FieldInfo finfo:fields)
+            len += finfo.length();
+
+        len += 2;
+        for (MethodInfo minfo:methods)
+            len += minfo.length();
+
+        return len + 2 + AttributeInfo.getLength(attributes);
+    }
+
     /**
      * Writes a class file represented by this object into an output stream.
      */
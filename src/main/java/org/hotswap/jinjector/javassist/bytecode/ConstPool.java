@@ -21,7 +21,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -36,7 +36,24 @@ public final class ConstPool
     LongVector items;
     int numOfItems;
     int thisClassInfo;
-    Map<ConstInfo,ConstInfo> itemsCache;
+
+    /* The index for finding an entry equal to an added one.
+     * It is an open addressing table of (hash << 32 | the item index).
+     * The items from 1 to numOfIndexedItems - 1 have been put.
+     */
+    private long[] itemsIndex;
+    private int numOfIndexedItems;
+    private int itemsIndexSize;
+
+    /* If the entries read from a class file are decoded lazily,
+     * rawBytes is the class file and rawOffsets[i] is the offset of
+     * the i-th entry.  The entry ends at rawOffsets[i + 1].  The items
+     * not decoded yet are null.  A decoded item replaces null only once,
+     * so that a frozen class can be read by threads.
+     */
+    private byte[] rawBytes;
+    private int[] rawOffsets;
+    private int numOfRawItems;
 
     /**
      * <code>CONSTANT_Class</code>
@@ -178,7 +195,7 @@ public final class ConstPool
     public ConstPool(String thisclass)
     {
         items = new LongVector();
-        itemsCache = null;
+        itemsIndex = null;
         numOfItems = 0;
         addItem0(null);          // index 0 is reserved by the JVM.
         thisClassInfo = addClassInfo(thisclass);
@@ -191,16 +208,19 @@ public final class ConstPool
      */
     public ConstPool(DataInputStream in) throws IOException
     {
-        itemsCache = null;
+        itemsIndex = null;
         thisClassInfo = 0;
         /* read() initializes items and numOfItems, and do addItem(null).
          */
-        read(in);
+        if (in instanceof ByteArrayDataInput)
+            readLazily((ByteArrayDataInput)in);
+        else
+            read(in);
     }
 
     void prune()
     {
-        itemsCache = null;
+        itemsIndex = null;
     }
 
     /**
@@ -235,7 +255,41 @@ public final class ConstPool
 
     ConstInfo getItem(int n)
     {
-        return items.elementAt(n);
+        if (rawBytes == null)
+            return items.elementAt(n);
+
+        ConstInfo info = items.elementAtAcquire(n);
+        if (info == null && 0 < n && n < numOfRawItems)
+            info = decodeItem(n);
+
+        return info;
+    }
+
+    /* Returns the item at the given index or null if it has not
+     * been decoded yet.
+     */
+    private ConstInfo decodedItem(int n)
+    {
+        if (rawBytes == null)
+            return items.elementAt(n);
+        else
+            return items.elementAtAcquire(n);
+    }
+
+    /* Returns the tag of the entry at the given index if it has not
+     * been decoded yet.  Otherwise, -1.
+     */
+    private int rawTag(int n)
+    {
+        if (rawBytes == null || n <= 0 || numOfRawItems <= n
+            || items.elementAtAcquire(n) != null)
+            return -1;
+
+        int pos = rawOffsets[n];
+        if (pos == rawOffsets[n + 1])
+            return 0;       // padding
+
+        return rawBytes[pos] & 0xff;
     }
 
     /**
@@ -247,6 +301,10 @@ public final class ConstPool
      */
     public int getTag(int index)
     {
+        int tag = rawTag(index);
+        if (tag >= 0)
+            return tag;
+
         return getItem(index).getTag();
     }
 
@@ -869,17 +927,199 @@ public final class ConstPool
 
     private int addItem(ConstInfo info)
     {
-        if (itemsCache == null)
-            itemsCache = makeItemsCache(items);
+        updateIndex();
+        if ((itemsIndexSize + 1) * 2 > itemsIndex.length)
+            resizeIndex(itemsIndex.length * 2);
+
+        int hash = hashOf(info);
+        int found = findItem(info, hash);
+        if (found > 0)
+            return found;
 
-        ConstInfo found = itemsCache.get(info);
-        if (found != null)
-            return found.index;
         items.addElement(info);
-        itemsCache.put(info, info);
+        itemsIndex[~found] = ((long)hash << 32) | numOfItems;
+        itemsIndexSize++;
+        numOfIndexedItems = numOfItems + 1;
         return numOfItems++;
     }
 
+    /* Puts the items added since the last call into the index.
+     * The hashes of the entries not decoded yet are computed from
+     * their bytes, so that they are not decoded.  If the class file
+     * contains equal entries, the last one is found.
+     */
+    private void updateIndex()
+    {
+        if (itemsIndex == null) {
+            int size = 16;
+            while (size < numOfItems * 2)
+                size <<= 1;
+
+            itemsIndex = new long[size];
+            itemsIndexSize = 0;
+            numOfIndexedItems = 1;
+        }
+
+        for (int n = numOfIndexedItems; n < numOfItems; ++n) {
+            int tag = rawTag(n);
+            if (tag > 0)
+                replaceIndex(n, rawHashOf(n, tag));
+            else if (tag < 0) {
+                ConstInfo info = getItem(n);
+                if (!(info instanceof ConstInfoPadding))
+                    replaceIndex(n, hashOf(info));
+            }
+        }
+
+        numOfIndexedItems = numOfItems;
+    }
+
+    private static int hashOf(ConstInfo info)
+    {
+        return info.hashCode() * 31 + info.getTag();
+    }
+
+    private static int slotOf(int hash, int size)
+    {
+        return (hash * 0x9e3779b9) >>> (Integer.numberOfLeadingZeros(size) + 1);
+    }
+
+    /* Returns the index of the item equal to the given one.
+     * If not found, it returns ~slot, where slot is the empty slot
+     * for the given item.  equals() is called only if the hash is equal.
+     */
+    private int findItem(ConstInfo info, int hash)
+    {
+        long[] table = itemsIndex;
+        int mask = table.length - 1;
+        for (int i = slotOf(hash, table.length); ; i = (i + 1) & mask) {
+            long e = table[i];
+            if (e == 0)
+                return ~i;
+
+            if ((int)(e >>> 32) == hash) {
+                int n = (int)e;
+                if (getItem(n).equals(info))
+                    return n;
+            }
+        }
+    }
+
+    /* Puts the n-th item into the index unless an equal item
+     * has been put.  In that case, the item replaces it.
+     */
+    private void replaceIndex(int n, int hash)
+    {
+        long[] table = itemsIndex;
+        int mask = table.length - 1;
+        for (int i = slotOf(hash, table.length); ; i = (i + 1) & mask) {
+            long e = table[i];
+            if (e == 0)
+                break;
+
+            if ((int)(e >>> 32) == hash
+                && getItem((int)e).equals(getItem(n))) {
+                table[i] = ((long)hash << 32) | n;
+                return;
+            }
+        }
+
+        putIndex(n, hash);
+    }
+
+    private void putIndex(int n, int hash)
+    {
+        if ((itemsIndexSize + 1) * 2 > itemsIndex.length)
+            resizeIndex(itemsIndex.length * 2);
+
+        putIndex(itemsIndex, ((long)hash << 32) | n);
+        itemsIndexSize++;
+    }
+
+    private static void putIndex(long[] table, long e)
+    {
+        int mask = table.length - 1;
+        int i = slotOf((int)(e >>> 32), table.length);
+        while (table[i] != 0)
+            i = (i + 1) & mask;
+
+        table[i] = e;
+    }
+
+    private void resizeIndex(int size)
+    {
+        long[] table = new long[size];
+        for (long e: itemsIndex)
+            if (e != 0)
+                putIndex(table, e);
+
+        itemsIndex = table;
+    }
+
+    /* Computes hashOf(getItem(n)) from the bytes of the entry
+     * without decoding it.
+     */
+    private int rawHashOf(int n, int tag)
+    {
+        byte[] b = rawBytes;
+        int pos = rawOffsets[n] + 1;
+        int h;
+        switch (tag) {
+        case Utf8Info.tag :
+            h = utf8HashOf(n, pos);
+            break;
+        case IntegerInfo.tag :
+            h = ByteArray.read32bit(b, pos);
+            break;
+        case FloatInfo.tag :
+            h = Float.floatToIntBits(Float.intBitsToFloat(
+                                        ByteArray.read32bit(b, pos)));
+            break;
+        case LongInfo.tag : {
+            long v = read64bit(b, pos);
+            h = (int)(v ^ (v >>> 32));
+            break; }
+        case DoubleInfo.tag : {
+            long v = Double.doubleToLongBits(Double.longBitsToDouble(
+                                                read64bit(b, pos)));
+            h = (int)(v ^ (v >>> 32));
+            break; }
+        case MethodHandleInfo.tag :
+            h = ((b[pos] & 0xff) << 16) ^ ByteArray.readU16bit(b, pos + 1);
+            break;
+        case FieldrefInfo.tag :
+        case MethodrefInfo.tag :
+        case InterfaceMethodrefInfo.tag :
+        case NameAndTypeInfo.tag :
+        case InvokeDynamicInfo.tag :
+            h = (ByteArray.readU16bit(b, pos) << 16)
+                ^ ByteArray.readU16bit(b, pos + 2);
+            break;
+        default :   // Class, String, MethodType, Module, and Package
+            h = ByteArray.readU16bit(b, pos);
+            break;
+        }
+
+        return h * 31 + tag;
+    }
+
+    /* Computes String.hashCode() of the n-th entry.
+     */
+    private int utf8HashOf(int n, int pos)
+    {
+        byte[] b = rawBytes;
+        int end = pos + 2 + ByteArray.readU16bit(b, pos);
+        int h = 0;
+        for (int i = pos + 2; i < end; i++) {
+            if (b[i] < 0)
+                return readUtf8(n, pos).hashCode();
+
+            h = 31 * h + b[i];
+        }
+
+        return h;
+    }
+
     /**
      * Copies the n-th item in this ConstPool object into the destination
      * ConstPool object.
@@ -1225,10 +1465,13 @@ public final class ConstPool
     public Set<String> getClassNames()
     {
         Set<String> result = new HashSet<String>();
-        LongVector v = items;
         int size = numOfItems;
         for (int i = 1; i < size; ++i) {
-            String className = v.elementAt(i).getClassName(this);
+            int tag = rawTag(i);
+            if (tag >= 0 && tag != ClassInfo.tag)
+                continue;
+
+            String className = getItem(i).getClassName(this);
             if (className != null)
                result.add(className);
         }
@@ -1243,12 +1486,18 @@ public final class ConstPool
      */
     public void renameClass(String oldName, String newName)
     {
-        LongVector v = items;
         int size = numOfItems;
-        for (int i = 1; i < size; ++i) {
-            ConstInfo ci = v.elementAt(i);
-            ci.renameClass(this, oldName, newName, itemsCache);
-        }
+        boolean changed = false;
+        for (int i = 1; i < size; ++i)
+            if (mayReferToClass(i)) {
+                ConstInfo ci = getItem(i);
+                int hash = hashOf(ci);
+                ci.renameClass(this, oldName, newName);
+                changed |= hash != hashOf(ci);
+            }
+
+        if (changed)
+            itemsIndex = null;      // the index is rebuilt later.
     }
 
     /**
@@ -1259,12 +1508,28 @@ public final class ConstPool
      */
     public void renameClass(Map<String,String> classnames)
     {
-        LongVector v = items;
         int size = numOfItems;
-        for (int i = 1; i < size; ++i) {
-            ConstInfo ci = v.elementAt(i);
-            ci.renameClass(this, classnames, itemsCache);
-        }
+        boolean changed = false;
+        for (int i = 1; i < size; ++i)
+            if (mayReferToClass(i)) {
+                ConstInfo ci = getItem(i);
+                int hash = hashOf(ci);
+                ci.renameClass(this, classnames);
+                changed |= hash != hashOf(ci);
+            }
+
+        if (changed)
+            itemsIndex = null;      // the index is rebuilt later.
+    }
+
+    /* Returns false if the entry at the given index has not been
+     * decoded yet and it is not an entry that renameClass() modifies.
+     */
+    private boolean mayReferToClass(int n)
+    {
+        int tag = rawTag(n);
+        return tag < 0 || tag == ClassInfo.tag
+               || tag == NameAndTypeInfo.tag || tag == MethodTypeInfo.tag;
     }
 
     private void read(DataInputStream in) throws IOException
@@ -1284,18 +1549,157 @@ public final class ConstPool
         }
     }
 
-    private static Map<ConstInfo,ConstInfo> makeItemsCache(LongVector items)
+    /* Records the offsets of the entries instead of decoding them.
+     * The entries are decoded by decodeItem() when they are accessed.
+     */
+    private void readLazily(ByteArrayDataInput in) throws IOException
     {
-        Map<ConstInfo,ConstInfo> cache = new HashMap<ConstInfo,ConstInfo>();
-        int i = 1;
-        while (true) {
-            ConstInfo info = items.elementAt(i++);
-            if (info == null)
+        int n = in.readUnsignedShort();
+        int[] offsets = new int[n + 2];
+
+        items = new LongVector(n);
+        numOfItems = 0;
+        addItem0(null);          // index 0 is reserved by the JVM.
+
+        while (numOfItems < n) {
+            offsets[numOfItems] = in.position();
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case Utf8Info.tag :
+                in.skip(in.readUnsignedShort());
                 break;
-            cache.put(info, info);
+            case ClassInfo.tag :
+            case StringInfo.tag :
+            case MethodTypeInfo.tag :
+            case ModuleInfo.tag :
+            case PackageInfo.tag :
+                in.skip(2);
+                break;
+            case MethodHandleInfo.tag :
+                in.skip(3);
+                break;
+            case IntegerInfo.tag :
+            case FloatInfo.tag :
+            case FieldrefInfo.tag :
+            case MethodrefInfo.tag :
+            case InterfaceMethodrefInfo.tag :
+            case NameAndTypeInfo.tag :
+            case InvokeDynamicInfo.tag :
+                in.skip(4);
+                break;
+            case LongInfo.tag :
+            case DoubleInfo.tag :
+                in.skip(8);
+                addItem0(null);
+                offsets[numOfItems] = in.position();    // padding
+                break;
+            default :
+                throw new IOException("invalid constant type: "
+                                      + tag + " at " + numOfItems);
+            }
+
+            addItem0(null);
+        }
+
+        offsets[numOfItems] = in.position();
+        rawBytes = in.array();
+        rawOffsets = offsets;
+        numOfRawItems = numOfItems;
+    }
+
+    private synchronized ConstInfo decodeItem(int n)
+    {
+        ConstInfo info = items.elementAt(n);
+        if (info == null) {
+            info = readItem(n);
+            items.setElementAt(n, info);
         }
 
-        return cache;
+        return info;
+    }
+
+    /* Decodes the n-th entry in rawBytes.
+     * The offsets have been checked by readLazily().
+     */
+    private ConstInfo readItem(int n)
+    {
+        byte[] b = rawBytes;
+        int pos = rawOffsets[n];
+        if (pos == rawOffsets[n + 1])
+            return new ConstInfoPadding(n);
+
+        int tag = b[pos++] & 0xff;
+        switch (tag) {
+        case Utf8Info.tag :                     // 1
+            return new Utf8Info(readUtf8(n, pos), n);
+        case IntegerInfo.tag :                  // 3
+            return new IntegerInfo(ByteArray.read32bit(b, pos), n);
+        case FloatInfo.tag :                    // 4
+            return new FloatInfo(Float.intBitsToFloat(
+                                    ByteArray.read32bit(b, pos)), n);
+        case LongInfo.tag :                     // 5
+            return new LongInfo(read64bit(b, pos), n);
+        case DoubleInfo.tag :                   // 6
+            return new DoubleInfo(Double.longBitsToDouble(
+                                    read64bit(b, pos)), n);
+        case ClassInfo.tag :                    // 7
+            return new ClassInfo(ByteArray.readU16bit(b, pos), n);
+        case StringInfo.tag :                   // 8
+            return new StringInfo(ByteArray.readU16bit(b, pos), n);
+        case FieldrefInfo.tag :                 // 9
+            return new FieldrefInfo(ByteArray.readU16bit(b, pos),
+                                    ByteArray.readU16bit(b, pos + 2), n);
+        case MethodrefInfo.tag :                // 10
+            return new MethodrefInfo(ByteArray.readU16bit(b, pos),
+                                     ByteArray.readU16bit(b, pos + 2), n);
+        case InterfaceMethodrefInfo.tag :       // 11
+            return new InterfaceMethodrefInfo(ByteArray.readU16bit(b, pos),
+                                    ByteArray.readU16bit(b, pos + 2), n);
+        case NameAndTypeInfo.tag :              // 12
+            return new NameAndTypeInfo(ByteArray.readU16bit(b, pos),
+                                       ByteArray.readU16bit(b, pos + 2), n);
+        case MethodHandleInfo.tag :             // 15
+            return new MethodHandleInfo(b[pos] & 0xff,
+                                        ByteArray.readU16bit(b, pos + 1), n);
+        case MethodTypeInfo.tag :               // 16
+            return new MethodTypeInfo(ByteArray.readU16bit(b, pos), n);
+        case InvokeDynamicInfo.tag :            // 18
+            return new InvokeDynamicInfo(ByteArray.readU16bit(b, pos),
+                                         ByteArray.readU16bit(b, pos + 2), n);
+        case ModuleInfo.tag :                   // 19
+            return new ModuleInfo(ByteArray.readU16bit(b, pos), n);
+        case PackageInfo.tag :                  // 20
+            return new PackageInfo(ByteArray.readU16bit(b, pos), n);
+        default :
+            throw new RuntimeException("invalid constant type: "
+                                       + tag + " at " + n);
+        }
+    }
+
+    private static long read64bit(byte[] b, int pos)
+    {
+        return ((long)ByteArray.read32bit(b, pos) << 32)
+               | (ByteArray.read32bit(b, pos + 4) & 0xffffffffL);
+    }
+
+    /* Decodes the modified UTF-8 string of the n-th entry.
+     * A string of ASCII characters is decoded without a stream.
+     */
+    private String readUtf8(int n, int pos)
+    {
+        byte[] b = rawBytes;
+        int len = ByteArray.readU16bit(b, pos);
+        int end = pos + 2 + len;
+        for (int i = pos + 2; i < end; i++)
+            if (b[i] < 0)
+                try {
+                    return new ByteArrayDataInput(b, pos, len + 2).readUTF();
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("broken UTF-8 string at " + n, e);
+                }
+
+        return new String(b, pos + 2, len, StandardCharsets.ISO_8859_1);
     }
 
     private int readOne(DataInputStream in) throws IOException
@@ -1360,16 +1764,47 @@ public final class ConstPool
         return tag;
     }
 
+    /**
+     * Returns the length in bytes of the constant pool table
+     * written by <code>write()</code>.
+     */
+    int length() {
+        int len = 2;
+        int size = numOfItems;
+        for (int i = 1; i < size; ++i) {
+            ConstInfo info = decodedItem(i);
+            if (info == null)
+                len += rawOffsets[i + 1] - rawOffsets[i];
+            else
+                len += info.length();
+        }
+
+        return len;
+    }
+
     /**
      * Writes the contents of the constant pool table.
      */
     public void write(DataOutputStream out) throws IOException
     {
         out.writeShort(numOfItems);
-        LongVector v = items;
         int size = numOfItems;
-        for (int i = 1; i < size; ++i)
-            v.elementAt(i).write(out);
+        int i = 1;
+        while (i < size) {
+            ConstInfo info = decodedItem(i);
+            if (info != null)
+                info.write(out);
+            else {
+                // copy the consecutive entries not decoded yet as is
+                int start = rawOffsets[i];
+                while (i + 1 < numOfRawItems && decodedItem(i + 1) == null)
+                    i++;
+
+                out.write(rawBytes, start, rawOffsets[i + 1] - start);
+            }
+
+            i++;
+        }
     }
 
     /**
@@ -1389,7 +1824,7 @@ public final class ConstPool
         for (int i = 1; i < size; ++i) {
             out.print(i);
             out.print(" ");
-            items.elementAt(i).print(out);
+            getItem(i).print(out);
         }
     }
 }
@@ -1403,15 +1838,14 @@ abstract class ConstInfo
     public abstract int getTag();
 
     public String getClassName(ConstPool cp) { return null; }
-    public void renameClass(ConstPool cp, String oldName, String newName,
-            Map<ConstInfo,ConstInfo> cache) {}
-    public void renameClass(ConstPool cp, Map<String,String> classnames,
-            Map<ConstInfo,ConstInfo> cache) {}
+    public void renameClass(ConstPool cp, String oldName, String newName) {}
+    public void renameClass(ConstPool cp, Map<String,String> classnames) {}
     public abstract int copy(ConstPool src, ConstPool dest,
             Map<String, String> classnames);
         // ** classnames is a mapping between JVM names.
 
     public abstract void write(DataOutputStream out) throws IOException;
+    public abstract int length();   // the length of the written item
     public abstract void print(PrintWriter out);
 
     @Override
@@ -1438,6 +1872,9 @@ class ConstInfoPadding extends ConstInfo
         return dest.addConstInfoPadding();
     }
 
+    @Override
+    public int length() { return 0; }
+
     @Override
     public void write(DataOutputStream out) throws IOException {}
 
@@ -1484,8 +1921,7 @@ class ClassInfo extends ConstInfo
     }
 
     @Override
-    public void renameClass(ConstPool cp, String oldName, String newName,
-            Map<ConstInfo,ConstInfo> cache)
+    public void renameClass(ConstPool cp, String oldName, String newName)
     {
         String nameStr = cp.getUtf8Info(name);
         String newNameStr = null;
@@ -1498,18 +1934,11 @@ class ClassInfo extends ConstInfo
         }
 
         if (newNameStr != null)
-            if (cache == null)
-                name = cp.addUtf8Info(newNameStr);
-            else {
-                cache.remove(this);
-                name = cp.addUtf8Info(newNameStr);
-                cache.put(this, this);
-            }
+            name = cp.addUtf8Info(newNameStr);
     }
 
     @Override
-    public void renameClass(ConstPool cp, Map<String,String> map,
-            Map<ConstInfo,ConstInfo> cache)
+    public void renameClass(ConstPool cp, Map<String,String> map)
     {
         String oldName = cp.getUtf8Info(name);
         String newName = null;
@@ -1524,15 +1953,8 @@ class ClassInfo extends ConstInfo
                 newName = s;
         }
 
-        if (newName != null) {
-            if (cache == null)
-                name = cp.addUtf8Info(newName);
-            else {
-                cache.remove(this);
-                name = cp.addUtf8Info(newName);
-                cache.put(this, this);
-            }
-        }
+        if (newName != null)
+            name = cp.addUtf8Info(newName);
     }
 
     @Override
@@ -1548,6 +1970,9 @@ class ClassInfo extends ConstInfo
         return dest.addClassInfo(classname);
     }
 
+    @Override
+    public int length() { return 3; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -1601,35 +2026,21 @@ class NameAndTypeInfo extends ConstInfo
     public int getTag() { return tag; }
 
     @Override
-    public void renameClass(ConstPool cp, String oldName, String newName,
-            Map<ConstInfo,ConstInfo> cache)
+    public void renameClass(ConstPool cp, String oldName, String newName)
     {
         String type = cp.getUtf8Info(typeDescriptor);
         String type2 = Descriptor.rename(type, oldName, newName);
         if (type != type2)
-            if (cache == null)
-                typeDescriptor = cp.addUtf8Info(type2);
-            else {
-                cache.remove(this);
-                typeDescriptor = cp.addUtf8Info(type2);
-                cache.put(this, this);
-            }
+            typeDescriptor = cp.addUtf8Info(type2);
     }
 
     @Override
-    public void renameClass(ConstPool cp, Map<String,String> map,
-            Map<ConstInfo,ConstInfo> cache)
+    public void renameClass(ConstPool cp, Map<String,String> map)
     {
         String type = cp.getUtf8Info(typeDescriptor);
         String type2 = Descriptor.rename(type, map);
         if (type != type2)
-            if (cache == null)
-                typeDescriptor = cp.addUtf8Info(type2);
-            else {
-                cache.remove(this);
-                typeDescriptor = cp.addUtf8Info(type2);
-                cache.put(this, this);
-            }
+            typeDescriptor = cp.addUtf8Info(type2);
     }
 
     @Override
@@ -1642,6 +2053,9 @@ class NameAndTypeInfo extends ConstInfo
                                        dest.addUtf8Info(tdesc));
     }
 
+    @Override
+    public int length() { return 5; }
+
     @Override
     public void write(DataOutputStream out) throws IOException {
         out.writeByte(tag);
@@ -1702,6 +2116,9 @@ abstract class MemberrefInfo extends ConstInfo
 
     abstract protected int copy2(ConstPool dest, int cindex, int ntindex);
 
+    @Override
+    public int length() { return 5; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -1841,6 +2258,9 @@ class StringInfo extends ConstInfo
         return dest.addStringInfo(src.getUtf8Info(string));
     }
 
+    @Override
+    public int length() { return 3; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -1891,6 +2311,9 @@ class IntegerInfo extends ConstInfo
         return dest.addIntegerInfo(value);
     }
 
+    @Override
+    public int length() { return 5; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -1941,6 +2364,9 @@ class FloatInfo extends ConstInfo
         return dest.addFloatInfo(value);
     }
 
+    @Override
+    public int length() { return 5; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -1990,6 +2416,9 @@ class LongInfo extends ConstInfo
         return dest.addLongInfo(value);
     }
 
+    @Override
+    public int length() { return 9; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -2044,6 +2473,9 @@ class DoubleInfo extends ConstInfo
         return dest.addDoubleInfo(value);
     }
 
+    @Override
+    public int length() { return 9; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -2098,6 +2530,24 @@ class Utf8Info extends ConstInfo
         return dest.addUtf8Info(string);
     }
 
+    @Override
+    public int length() {
+        // modified UTF-8, as written by writeUTF()
+        int len = 3;
+        String str = string;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f)
+                len++;
+            else if (c <= 0x07ff)
+                len += 2;
+            else
+                len += 3;
+        }
+
+        return len;
+    }
+
     @Override
     public void write(DataOutputStream out)
             throws IOException
@@ -2156,6 +2606,9 @@ class MethodHandleInfo extends ConstInfo {
                    src.getItem(refIndex).copy(src, dest, map));
     }
 
+    @Override
+    public int length() { return 4; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -2206,35 +2659,21 @@ class MethodTypeInfo extends ConstInfo
     public int getTag() { return tag; }
 
     @Override
-    public void renameClass(ConstPool cp, String oldName, String newName,
-            Map<ConstInfo,ConstInfo> cache)
+    public void renameClass(ConstPool cp, String oldName, String newName)
     {
         String desc = cp.getUtf8Info(descriptor);
         String desc2 = Descriptor.rename(desc, oldName, newName);
         if (desc != desc2)
-            if (cache == null)
-                descriptor = cp.addUtf8Info(desc2);
-            else {
-                cache.remove(this);
-                descriptor = cp.addUtf8Info(desc2);
-                cache.put(this, this);
-            }
+            descriptor = cp.addUtf8Info(desc2);
     }
 
     @Override
-    public void renameClass(ConstPool cp, Map<String,String> map,
-            Map<ConstInfo,ConstInfo> cache)
+    public void renameClass(ConstPool cp, Map<String,String> map)
     {
         String desc = cp.getUtf8Info(descriptor);
         String desc2 = Descriptor.rename(desc, map);
         if (desc != desc2)
-            if (cache == null)
-                descriptor = cp.addUtf8Info(desc2);
-            else {
-                cache.remove(this);
-                descriptor = cp.addUtf8Info(desc2);
-                cache.put(this, this);
-            }
+            descriptor = cp.addUtf8Info(desc2);
     }
 
     @Override
@@ -2245,6 +2684,9 @@ class MethodTypeInfo extends ConstInfo
         return dest.addMethodTypeInfo(dest.addUtf8Info(desc));
     }
 
+    @Override
+    public int length() { return 3; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -2305,6 +2747,9 @@ class InvokeDynamicInfo extends ConstInfo
             src.getItem(nameAndType).copy(src, dest, map));
     }
 
+    @Override
+    public int length() { return 5; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -2367,6 +2812,9 @@ class ModuleInfo extends ConstInfo
         return dest.addModuleInfo(newName);
     }
 
+    @Override
+    public int length() { return 3; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
@@ -2425,6 +2873,9 @@ class PackageInfo extends ConstInfo
         return dest.addModuleInfo(newName);
     }
 
+    @Override
+    public int length() { return 3; }
+
     @Override
     public void write(DataOutputStream out) throws IOException
     {
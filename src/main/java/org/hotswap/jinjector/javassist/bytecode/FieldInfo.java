@@ -44,6 +44,7 @@ public final class FieldInfo {
     String cachedType;
     int descriptor;
     List<AttributeInfo> attribute;       // may be null.
+    private volatile RawAttributes rawAttributes; // the attributes not read yet
 
     private FieldInfo(ConstPool cp) {
         constPool = cp;
@@ -72,6 +73,51 @@ public final class FieldInfo {
         read(in);
     }
 
+    /* The attributes are not read until they are accessed.
+     */
+    FieldInfo(ConstPool cp, ByteArrayDataInput in) throws IOException {
+        this(cp);
+        accessFlags = in.readUnsignedShort();
+        name = in.readUnsignedShort();
+        descriptor = in.readUnsignedShort();
+        rawAttributes = RawAttributes.skip(in);
+    }
+
+    /* Reads the attributes if they have not been read yet.
+     * They may be modified after this call.  A frozen class may be
+     * shared by threads, so the attributes are read only once.
+     */
+    private void readAttributes() {
+        if (rawAttributes != null)
+            synchronized (this) {
+                RawAttributes raw = rawAttributes;
+                if (raw != null) {
+                    attribute = readRawAttributes(raw);
+                    rawAttributes = null;
+                }
+            }
+    }
+
+    private List<AttributeInfo> readRawAttributes(RawAttributes raw) {
+        try {
+            return raw.read(constPool);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("broken attribute: " + getName(), e);
+        }
+    }
+
+    /* Returns the attributes for reading only.
+     * See MethodInfo.getAttributesToRead().
+     */
+    List<AttributeInfo> getAttributesToRead() {
+        RawAttributes raw = rawAttributes;
+        if (raw != null)
+            return readRawAttributes(raw);
+
+        return attribute;
+    }
+
     /**
      * Returns a string representation of the object.
      */
@@ -89,6 +135,7 @@ public final class FieldInfo {
      * @param cp    the destination
      */
     void compact(ConstPool cp) {
+        readAttributes();
         name = cp.addUtf8Info(getName());
         descriptor = cp.addUtf8Info(getDescriptor());
         attribute = AttributeInfo.copyAll(attribute, cp);
@@ -221,6 +268,7 @@ public final class FieldInfo {
      * @see AttributeInfo
      */
     public List<AttributeInfo> getAttributes() {
+        readAttributes();
         if (attribute == null)
             attribute = new ArrayList<AttributeInfo>();
 
@@ -240,6 +288,7 @@ public final class FieldInfo {
      * @see #getAttributes()
      */
     public AttributeInfo getAttribute(String name) {
+        readAttributes();
         return AttributeInfo.lookup(attribute, name);
     }
 
@@ -251,6 +300,7 @@ public final class FieldInfo {
      * @since 3.21
      */
     public AttributeInfo removeAttribute(String name) {
+        readAttributes();
         return AttributeInfo.remove(attribute, name);
     }
 
@@ -261,6 +311,7 @@ public final class FieldInfo {
      * @see #getAttributes()
      */
     public void addAttribute(AttributeInfo info) {
+        readAttributes();
         if (attribute == null)
             attribute = new ArrayList<AttributeInfo>();
 
@@ -278,11 +329,26 @@ public final class FieldInfo {
             attribute.add(AttributeInfo.read(constPool, in));
     }
 
+    /* Returns the length in bytes of the structure written by write().
+     */
+    int length() {
+        RawAttributes raw = rawAttributes;
+        if (raw != null)
+            return 6 + raw.length();
+        else if (attribute == null)
+            return 8;
+        else
+            return 8 + AttributeInfo.getLength(attribute);
+    }
+
     void write(DataOutputStream out) throws IOException {
         out.writeShort(accessFlags);
         out.writeShort(name);
         out.writeShort(descriptor);
-        if (attribute == null)
+        RawAttributes raw = rawAttributes;
+        if (raw != null)
+            raw.write(out);
+        else if (attribute == null)
             out.writeShort(0);
         else {
             out.writeShort(attribute.size());
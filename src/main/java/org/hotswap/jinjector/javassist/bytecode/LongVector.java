@@ -16,7 +16,13 @@
 
 package org.hotswap.jinjector.javassist.bytecode;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 final class LongVector {
+    private static final VarHandle ELEMENT
+        = MethodHandles.arrayElementVarHandle(ConstInfo[].class);
+
     static final int ASIZE = 128;
     static final int ABITS = 7;  // ASIZE = 2^ABITS
     static final int VSIZE = 8;
@@ -45,6 +51,23 @@ final class LongVector {
         return objects[i >> ABITS][i & (ASIZE - 1)];
     }
 
+    /* Returns an element that may have been set by setElementAt()
+     * in another thread.
+     */
+    ConstInfo elementAtAcquire(int i) {
+        if (i < 0 || elements <= i)
+            return null;
+
+        return (ConstInfo)ELEMENT.getAcquire(objects[i >> ABITS], i & (ASIZE - 1));
+    }
+
+    /* Replaces an element.  Another thread calling elementAtAcquire()
+     * sees either the old element or the new one fully constructed.
+     */
+    void setElementAt(int i, ConstInfo value) {
+        ELEMENT.setRelease(objects[i >> ABITS], i & (ASIZE - 1), value);
+    }
+
     public void addElement(ConstInfo value) {
         int nth = elements >> ABITS;
         int offset = elements & (ASIZE - 1);
@@ -61,6 +61,8 @@ public class MethodInfo {
     int descriptor;
     List<AttributeInfo> attribute; // may be null
 
+    private volatile RawAttributes rawAttributes; // the attributes not read yet
+
     /**
      * If this value is true, Javassist maintains a <code>StackMap</code> attribute
      * generated by the <code>preverify</code> tool of J2ME (CLDC).  The initial
@@ -109,6 +111,53 @@ public class MethodInfo {
         read(in);
     }
 
+    /* The attributes such as a Code attribute are not read
+     * until they are accessed.
+     */
+    MethodInfo(ConstPool cp, ByteArrayDataInput in) throws IOException {
+        this(cp);
+        accessFlags = in.readUnsignedShort();
+        name = in.readUnsignedShort();
+        descriptor = in.readUnsignedShort();
+        rawAttributes = RawAttributes.skip(in);
+    }
+
+    /* Reads the attributes if they have not been read yet.
+     * They may be modified after this call.  A frozen class may be
+     * shared by threads, so the attributes are read only once.
+     */
+    private void readAttributes() {
+        if (rawAttributes != null)
+            synchronized (this) {
+                RawAttributes raw = rawAttributes;
+                if (raw != null) {
+                    attribute = readRawAttributes(raw);
+                    rawAttributes = null;
+                }
+            }
+    }
+
+    private List<AttributeInfo> readRawAttributes(RawAttributes raw) {
+        try {
+            return raw.read(constPool);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("broken attribute: " + getName(), e);
+        }
+    }
+
+    /* Returns the attributes for reading only.  If they have not been
+     * read yet, a temporary copy is returned, so that they are still
+     * written back as is.
+     */
+    List<AttributeInfo> getAttributesToRead() {
+        RawAttributes raw = rawAttributes;
+        if (raw != null)
+            return readRawAttributes(raw);
+
+        return attribute;
+    }
+
     /**
      * Constructs a copy of <code>method_info</code> structure. Class names
      * appearing in the source <code>method_info</code> are renamed according
@@ -152,6 +201,7 @@ public class MethodInfo {
      * @param cp    the destination
      */
     void compact(ConstPool cp) {
+        readAttributes();
         name = cp.addUtf8Info(getName());
         descriptor = cp.addUtf8Info(getDescriptor());
         attribute = AttributeInfo.copyAll(attribute, cp);
@@ -307,6 +357,7 @@ public class MethodInfo {
      * @see AttributeInfo
      */
     public List<AttributeInfo> getAttributes() {
+        readAttributes();
         if (attribute == null)
             attribute = new ArrayList<AttributeInfo>();
 
@@ -327,6 +378,7 @@ public class MethodInfo {
      * @see #getAttributes()
      */
     public AttributeInfo getAttribute(String name) {
+        readAttributes();
         return AttributeInfo.lookup(attribute, name);
     }
 
@@ -338,6 +390,7 @@ public class MethodInfo {
      * @since 3.21
      */
     public AttributeInfo removeAttribute(String name) {
+        readAttributes();
         return AttributeInfo.remove(attribute, name);
     }
 
@@ -348,6 +401,7 @@ public class MethodInfo {
      * @see #getAttributes()
      */
     public void addAttribute(AttributeInfo info) {
+        readAttributes();
         if (attribute == null)
             attribute = new ArrayList<AttributeInfo>();
 
@@ -361,6 +415,7 @@ public class MethodInfo {
      * @return an Exceptions attribute or null if it is not specified.
      */
     public ExceptionsAttribute getExceptionsAttribute() {
+        readAttributes();
         AttributeInfo info = AttributeInfo.lookup(attribute,
                 ExceptionsAttribute.tag);
         return (ExceptionsAttribute)info;
@@ -372,6 +427,7 @@ public class MethodInfo {
      * @return a Code attribute or null if it is not specified.
      */
     public CodeAttribute getCodeAttribute() {
+        readAttributes();
         AttributeInfo info = AttributeInfo.lookup(attribute, CodeAttribute.tag);
         return (CodeAttribute)info;
     }
@@ -380,6 +436,7 @@ public class MethodInfo {
      * Removes an Exception attribute.
      */
     public void removeExceptionsAttribute() {
+        readAttributes();
         AttributeInfo.remove(attribute, ExceptionsAttribute.tag);
     }
 
@@ -402,6 +459,7 @@ public class MethodInfo {
      * Removes a Code attribute.
      */
     public void removeCodeAttribute() {
+        readAttributes();
         AttributeInfo.remove(attribute, CodeAttribute.tag);
     }
 
@@ -568,12 +626,27 @@ public class MethodInfo {
             attribute.add(AttributeInfo.read(constPool, in));
     }
 
+    /* Returns the length in bytes of the structure written by write().
+     */
+    int length() {
+        RawAttributes raw = rawAttributes;
+        if (raw != null)
+            return 6 + raw.length();
+        else if (attribute == null)
+            return 8;
+        else
+            return 8 + AttributeInfo.getLength(attribute);
+    }
+
     void write(DataOutputStream out) throws IOException {
         out.writeShort(accessFlags);
         out.writeShort(name);
         out.writeShort(descriptor);
 
-        if (attribute == null)
+        RawAttributes raw = rawAttributes;
+        if (raw != null)
+            raw.write(out);
+        else if (attribute == null)
             out.writeShort(0);
         else {
             out.writeShort(attribute.size());
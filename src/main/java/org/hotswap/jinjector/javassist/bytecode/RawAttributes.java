@@ -0,0 +1,76 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package org.hotswap.jinjector.javassist.bytecode;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The attributes of a field or a method that have not been read yet.
+ * They are a slice of the original class file, starting with
+ * <code>attributes_count</code>.  Until the attributes are read,
+ * the slice is written back as is.  It remains valid while the indexes
+ * of the constant pool do not change.
+ */
+final class RawAttributes {
+    private final byte[] buf;
+    private final int offset, length;
+
+    private RawAttributes(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Skips the attributes at the current position of the input.
+     */
+    static RawAttributes skip(ByteArrayDataInput in) throws IOException {
+        int start = in.position();
+        int n = in.readUnsignedShort();
+        for (int i = 0; i < n; ++i) {
+            in.skip(2);
+            in.skip(in.readInt());
+        }
+
+        return new RawAttributes(in.array(), start, in.position() - start);
+    }
+
+    /**
+     * Reads the attributes.
+     */
+    List<AttributeInfo> read(ConstPool cp) throws IOException {
+        ByteArrayDataInput in = new ByteArrayDataInput(buf, offset, length);
+        int n = in.readUnsignedShort();
+        List<AttributeInfo> list = new ArrayList<AttributeInfo>(n);
+        for (int i = 0; i < n; ++i)
+            list.add(AttributeInfo.read(cp, in));
+
+        return list;
+    }
+
+    /**
+     * Returns the length in bytes, including <code>attributes_count</code>.
+     */
+    int length() { return length; }
+
+    void write(DataOutputStream out) throws IOException {
+        out.write(buf, offset, length);
+    }
+}
@@ -187,19 +187,18 @@ public class ScopedClassPool extends ClassPool {
             }
 
             if (!isLocal) {
+                // the registered pools are iterated without locking
                 Map<ClassLoader,ScopedClassPool> registeredCLs = repository.getRegisteredCLs();
-                synchronized (registeredCLs) {
-                    for (ScopedClassPool pool:registeredCLs.values()) {
-                        if (pool.isUnloadedClassLoader()) {
-                            repository.unregisterClassLoader(pool
-                                    .getClassLoader());
-                            continue;
-                        }
+                for (ScopedClassPool pool:registeredCLs.values()) {
+                    if (pool.isUnloadedClassLoader()) {
+                        repository.unregisterClassLoader(pool
+                                .getClassLoader());
+                        continue;
+                    }
 
-                        clazz = pool.getCachedLocally(classname);
-                        if (clazz != null) {
-                            return clazz;
-                        }
+                    clazz = pool.getCachedLocally(classname);
+                    if (clazz != null) {
+                        return clazz;
                     }
                 }
             }
@@ -247,12 +246,10 @@ public class ScopedClassPool extends ClassPool {
      * @return the cached class
      */
     protected CtClass getCachedLocally(String classname) {
-        CtClass cached = (CtClass)classes.get(classname);
+        CtClass cached = classes.get(classname);
         if (cached != null)
             return cached;
-        synchronized (softcache) {
-            return (CtClass)softcache.get(classname);
-        }
+        return (CtClass)softcache.get(classname);   // a concurrent map
     }
 
     /**
@@ -267,7 +264,7 @@ public class ScopedClassPool extends ClassPool {
     public synchronized CtClass getLocally(String classname)
             throws NotFoundException {
         softcache.remove(classname);
-        CtClass clazz = (CtClass)classes.get(classname);
+        CtClass clazz = classes.get(classname);
         if (clazz == null) {
             clazz = createCtClass(classname, true);
             if (clazz == null)
@@ -17,10 +17,8 @@
 package org.hotswap.jinjector.javassist.scopedpool;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
 
 import org.hotswap.jinjector.javassist.ClassPool;
 import org.hotswap.jinjector.javassist.LoaderClassPath;
@@ -42,9 +40,9 @@ public class ScopedClassPoolRepositoryImpl implements ScopedClassPoolRepository
     /** Whether to prune when added to the classpool's cache */
     boolean pruneWhenCached;
 
-    /** The registered classloaders */
-    protected Map<ClassLoader,ScopedClassPool> registeredCLs = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader,ScopedClassPool>());
+    /** The registered classloaders.  Lookups do not lock the map. */
+    protected Map<ClassLoader,ScopedClassPool> registeredCLs
+            = new WeakKeyHashMap<ClassLoader,ScopedClassPool>();
 
     /** The default class pool */
     protected ClassPool classpool;
@@ -119,16 +117,22 @@ public class ScopedClassPoolRepositoryImpl implements ScopedClassPoolRepository
      */
     @Override
     public ClassPool registerClassLoader(ClassLoader ucl) {
+        ScopedClassPool pool = registeredCLs.get(ucl);
+        if (pool != null)
+            return pool;
+
+        // only creating a class pool is serialized
         synchronized (registeredCLs) {
             // FIXME: Probably want to take this method out later
             // so that AOP framework can be independent of JMX
             // This is in here so that we can remove a UCL from the ClassPool as
             // a
             // ClassPool.classpath
-            if (registeredCLs.containsKey(ucl)) {
-                return registeredCLs.get(ucl);
-            }
-            ScopedClassPool pool = createScopedClassPool(ucl, classpool);
+            pool = registeredCLs.get(ucl);
+            if (pool != null)
+                return pool;
+
+            pool = createScopedClassPool(ucl, classpool);
             registeredCLs.put(ucl, pool);
             return pool;
         }
@@ -150,31 +154,26 @@ public class ScopedClassPoolRepositoryImpl implements ScopedClassPoolRepository
     @Override
     public void clearUnregisteredClassLoaders() {
         List<ClassLoader> toUnregister = null;
-        synchronized (registeredCLs) {
-            for (Map.Entry<ClassLoader,ScopedClassPool> reg:registeredCLs.entrySet()) {
-                if (reg.getValue().isUnloadedClassLoader()) {
-                    ClassLoader cl = reg.getValue().getClassLoader();
-                    if (cl != null) {
-                        if (toUnregister == null)
-                            toUnregister = new ArrayList<ClassLoader>();
-                        toUnregister.add(cl);
-                    }
-                    registeredCLs.remove(reg.getKey());
+        for (ScopedClassPool pool:registeredCLs.values()) {
+            if (pool.isUnloadedClassLoader()) {
+                ClassLoader cl = pool.getClassLoader0();
+                if (cl != null) {
+                    if (toUnregister == null)
+                        toUnregister = new ArrayList<ClassLoader>();
+                    toUnregister.add(cl);
                 }
             }
-            if (toUnregister != null)
-                for (ClassLoader cl:toUnregister)
-                    unregisterClassLoader(cl);
         }
+        if (toUnregister != null)
+            for (ClassLoader cl:toUnregister)
+                unregisterClassLoader(cl);
     }
 
     @Override
     public void unregisterClassLoader(ClassLoader cl) {
-        synchronized (registeredCLs) {
-            ScopedClassPool pool = registeredCLs.remove(cl);
-            if (pool != null)
-                pool.close();
-        }
+        ScopedClassPool pool = registeredCLs.remove(cl);
+        if (pool != null)
+            pool.close();
     }
 
     public void insertDelegate(ScopedClassPoolRepository delegate) {
@@ -0,0 +1,246 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package org.hotswap.jinjector.javassist.scopedpool;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concurrent map with weakly referenced keys compared by identity.
+ * An entry is removed when its key has been cleaned by garbage
+ * collection.  Unlike a synchronized <code>WeakHashMap</code>, lookups
+ * do not lock the map and the values can be iterated while other threads
+ * update the map.
+ *
+ * @see SoftValueHashMap
+ */
+public class WeakKeyHashMap<K,V> implements Map<K,V> {
+    private static class WeakKey<K> extends WeakReference<K> {
+        private final int hash;
+
+        private WeakKey(K key, ReferenceQueue<K> q) {
+            super(key, q);
+            hash = System.identityHashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+
+            if (!(obj instanceof WeakKey))
+                return false;
+
+            Object key = get();
+            return key != null && key == ((WeakKey<?>)obj).get();
+        }
+    }
+
+    /* Hash table mapping WeakKeys to values */
+    private final ConcurrentHashMap<WeakKey<K>,V> hash;
+
+    /* Reference queue for cleared WeakKeys */
+    private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+    /**
+     * Constructs a new, empty map.
+     */
+    public WeakKeyHashMap() {
+        hash = new ConcurrentHashMap<WeakKey<K>,V>();
+    }
+
+    /*
+     * Remove all the entries whose keys have been discarded.
+     * A cleared key is equal only to itself, so the exact entry is removed.
+     */
+    private void processQueue() {
+        Object ref;
+        while ((ref = queue.poll()) != null)
+            hash.remove(ref);
+    }
+
+    @SuppressWarnings("unchecked")
+    private WeakKey<K> lookupKey(Object key) {
+        return new WeakKey<K>((K)key, null);
+    }
+
+    /**
+     * Returns the number of key-value mappings in this map.
+     */
+    @Override
+    public int size() {
+        processQueue();
+        return hash.size();
+    }
+
+    /**
+     * Returns <code>true</code> if this map contains no key-value mappings.
+     */
+    @Override
+    public boolean isEmpty() {
+        processQueue();
+        return hash.isEmpty();
+    }
+
+    /**
+     * Returns <code>true</code> if this map contains a mapping for the
+     * specified key.
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return key != null && hash.containsKey(lookupKey(key));
+    }
+
+    /**
+     * Returns <code>true</code> if this map maps a key to the specified value.
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        return value != null && hash.containsValue(value);
+    }
+
+    /**
+     * Returns the value to which this map maps the specified <code>key</code>
+     * or <code>null</code>.
+     */
+    @Override
+    public V get(Object key) {
+        if (key == null)
+            return null;
+
+        return hash.get(lookupKey(key));
+    }
+
+    /**
+     * Updates this map so that the given <code>key</code> maps to the given
+     * <code>value</code>.
+     *
+     * @return the previous value or <code>null</code>.
+     */
+    @Override
+    public V put(K key, V value) {
+        processQueue();
+        return hash.put(new WeakKey<K>(key, queue), value);
+    }
+
+    /**
+     * Maps the given <code>key</code> to the given <code>value</code>
+     * unless the key is already mapped.  This is atomic.
+     *
+     * @return the current value or <code>null</code> if the value
+     *          was put.
+     */
+    @Override
+    public V putIfAbsent(K key, V value) {
+        processQueue();
+        return hash.putIfAbsent(new WeakKey<K>(key, queue), value);
+    }
+
+    /**
+     * Removes the mapping for the given <code>key</code> from this map.
+     *
+     * @return the removed value or <code>null</code>.
+     */
+    @Override
+    public V remove(Object key) {
+        processQueue();
+        if (key == null)
+            return null;
+
+        return hash.remove(lookupKey(key));
+    }
+
+    /**
+     * Removes the mapping for the given <code>key</code> only if it maps
+     * to the given <code>value</code>.  This is atomic.
+     */
+    @Override
+    public boolean remove(Object key, Object value) {
+        processQueue();
+        return key != null && hash.remove(lookupKey(key), value);
+    }
+
+    /* {@inheritDoc} */
+    @Override
+    public void putAll(Map<? extends K,? extends V> map) {
+        for (Map.Entry<? extends K,? extends V> e: map.entrySet())
+            put(e.getKey(), e.getValue());
+    }
+
+    /**
+     * Removes all mappings from this map.
+     */
+    @Override
+    public void clear() {
+        hash.clear();
+        processQueue();
+    }
+
+    /**
+     * Returns a snapshot of the keys that have not been discarded.
+     */
+    @Override
+    public Set<K> keySet() {
+        processQueue();
+        Set<K> ret = new HashSet<K>();
+        for (WeakKey<K> k: hash.keySet()) {
+            K key = k.get();
+            if (key != null)
+                ret.add(key);
+        }
+
+        return ret;
+    }
+
+    /**
+     * Returns the values.  The returned collection is backed by this map
+     * and it can be iterated without locking while the map is modified.
+     * The values of discarded keys may be included until they are removed.
+     */
+    @Override
+    public Collection<V> values() {
+        processQueue();
+        return hash.values();
+    }
+
+    /**
+     * Returns a snapshot of the mappings whose keys have not been discarded.
+     */
+    @Override
+    public Set<Entry<K,V>> entrySet() {
+        processQueue();
+        Set<Entry<K,V>> ret = new HashSet<Entry<K,V>>();
+        for (Entry<WeakKey<K>,V> e: hash.entrySet()) {
+            K key = e.getKey().get();
+            if (key != null)
+                ret.add(new SimpleImmutableEntry<K,V>(key, e.getValue()));
+        }
+
+        return ret;
+    }
+}
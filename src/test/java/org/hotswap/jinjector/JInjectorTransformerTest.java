@@ -0,0 +1,292 @@
+package org.hotswap.jinjector;
+
+import org.hotswap.jinjector.javassist.ClassPool;
+import org.hotswap.jinjector.javassist.CtClass;
+import org.hotswap.jinjector.javassist.CtField;
+import org.hotswap.jinjector.javassist.bytecode.ClassFile;
+import org.hotswap.jinjector.parser.PatchParser;
+import org.hotswap.jinjector.patch.Patch;
+import org.hotswap.jinjector.patch.Transform;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Proxy;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class JInjectorTransformerTest {
+
+    private static final String SAMPLE = TransformSample.class.getName();
+
+    private static final String RETRANSFORM_SAMPLE = RetransformSample.class.getName();
+
+    static class BytesLoader extends ClassLoader {
+        BytesLoader() {
+            super(null);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Instrumentation for the asynchronous transformation, it finds the class once the test defined it. Like the JVM,
+     * it retransforms the class from bytes which differ from the class file.
+     */
+    static class AsyncInstrumentation {
+        final JInjectorTransformer transformer;
+        final byte[] classFile;
+        final CompletableFuture<byte[]> retransformed = new CompletableFuture<>();
+        volatile Class<?> defined;
+
+        AsyncInstrumentation(JInjectorTransformer transformer, byte[] classFile) {
+            this.transformer = transformer;
+            this.classFile = classFile;
+        }
+
+        Instrumentation instrumentation() {
+            return (Instrumentation) Proxy.newProxyInstance(JInjectorTransformerTest.class.getClassLoader(),
+                    new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getInitiatedClasses": {
+                                Class<?> clazz = defined;
+                                return clazz != null && clazz.getClassLoader() == args[0]
+                                        ? new Class<?>[]{clazz} : new Class<?>[0];
+                            }
+                            case "retransformClasses": {
+                                Class<?> clazz = ((Class<?>[]) args[0])[0];
+                                retransformed.complete(transformer.transform(clazz.getClassLoader(),
+                                        clazz.getName().replace('.', '/'), clazz, null, reconstitute(classFile)));
+                                return null;
+                            }
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+
+    // the JVM reorders the methods of a loaded class
+    private static byte[] reconstitute(byte[] bytes) throws IOException {
+        ClassFile classFile = new ClassFile(bytes);
+        Collections.reverse(classFile.getMethods());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        classFile.write(new DataOutputStream(out));
+        byte[] reconstituted = out.toByteArray();
+        assertFalse(Arrays.equals(bytes, reconstituted));
+        return reconstituted;
+    }
+
+    private static byte[] sampleBytes() throws IOException {
+        try (InputStream is = JInjectorTransformerTest.class.getResourceAsStream("TransformSample.class")) {
+            return is.readAllBytes();
+        }
+    }
+
+    private static JInjectorTransformer createTransformer(String name) throws IOException {
+        Patch patch;
+        try (InputStream is = JInjectorTransformerTest.class.getResourceAsStream(name)) {
+            patch = new PatchParser().parseStream(is);
+        }
+        assertNotNull(patch);
+        JInjectorTransformer transformer = new JInjectorTransformer();
+        for (Transform transform : patch.getTransforms()) {
+            transformer.addTransform(transform);
+        }
+        return transformer;
+    }
+
+    // a transform setting the body of RetransformSample.value() to return the value
+    private static Transform valueTransform(String value) {
+        Patch patch = new PatchParser().parse("@Transform\n"
+                + "class " + RETRANSFORM_SAMPLE + " {\n"
+                + "    $method(value())\n"
+                + "        .setBody {\n"
+                + "            return \"" + value + "\";\n"
+                + "        }\n"
+                + "}\n");
+        assertNotNull(patch);
+        return patch.getTransforms().get(0);
+    }
+
+    private static Transform sampleTransform(String body) {
+        Patch patch = new PatchParser().parse("@Transform\n"
+                + "class " + SAMPLE + " {\n"
+                + body
+                + "}\n");
+        assertNotNull(patch);
+        return patch.getTransforms().get(0);
+    }
+
+    private static List<?> run(byte[] sampleBytes) throws Exception {
+        Object sample = new BytesLoader().define(SAMPLE, sampleBytes).getConstructor().newInstance();
+        return (List<?>) sample.getClass().getMethod("run").invoke(sample);
+    }
+
+    private static byte[] classBytes(Class<?> clazz) throws IOException {
+        try (InputStream is = clazz.getResourceAsStream(clazz.getSimpleName() + ".class")) {
+            return is.readAllBytes();
+        }
+    }
+
+    private static Object patchedSample() throws Exception {
+        JInjectorTransformer transformer = createTransformer("fused.hswp");
+        byte[] bytes = transformer.transform(JInjectorTransformerTest.class.getClassLoader(),
+                SAMPLE.replace('.', '/'), null, null, sampleBytes());
+        Class<?> clazz = new BytesLoader().define(SAMPLE, bytes);
+        return clazz.getConstructor().newInstance();
+    }
+
+    @Test
+    public void fusedOrderTest() throws Exception {
+        Object sample = patchedSample();
+        Object log = sample.getClass().getMethod("run").invoke(sample);
+        assertEquals(Arrays.asList("before3", "before2", "before1", "body", "after1", "after2", "after3"), log);
+    }
+
+    @Test
+    public void returnFragmentTest() throws Exception {
+        Object sample = patchedSample();
+        Object log = sample.getClass().getMethod("check", boolean.class).invoke(sample, false);
+        assertEquals(Arrays.asList("before2", "before1", "body", "after1"), log);
+
+        sample = patchedSample();
+        log = sample.getClass().getMethod("check", boolean.class).invoke(sample, true);
+        // like insertAfter(), the after fragments run on the return of the before fragment too
+        assertEquals(Arrays.asList("before2", "early", "after1"), log);
+    }
+
+    @Test
+    public void preparedRetransformTest() throws Exception {
+        Instrumentation instrumentation = TestAgent.getInstrumentation();
+        assertEquals("original", RetransformSample.value());
+
+        JInjectorTransformer transformer = new JInjectorTransformer();
+        transformer.addTransform(valueTransform("prepared"));
+        transformer.prepareRetransform(RetransformSample.class);
+        // a transform replaced after the preparation shows whether the retransformation transformed again
+        transformer.addTransform(valueTransform("transformed"));
+
+        // transformers are called in the order they were added, the recorder sees the bytes passed by the JVM
+        List<byte[]> passed = new ArrayList<>();
+        ClassFileTransformer recorder = new ClassFileTransformer() {
+            @Override
+            public byte[] transform(ClassLoader loader, String className, Class<?> redefiningClass,
+                                    ProtectionDomain protectionDomain, byte[] bytes) {
+                if (redefiningClass == RetransformSample.class) {
+                    passed.add(bytes);
+                }
+                return null;
+            }
+        };
+        instrumentation.addTransformer(recorder, true);
+        instrumentation.addTransformer(transformer, true);
+        try {
+            instrumentation.retransformClasses(RetransformSample.class);
+            // the JVM passes the bytes reconstituted from the loaded class, not the class file
+            assertFalse(Arrays.equals(classBytes(RetransformSample.class), passed.get(0)));
+            assertEquals("prepared", RetransformSample.value());
+
+            // the prepared result is used only once
+            instrumentation.retransformClasses(RetransformSample.class);
+            assertEquals("transformed", RetransformSample.value());
+        } finally {
+            instrumentation.removeTransformer(transformer);
+            instrumentation.removeTransformer(recorder);
+            instrumentation.retransformClasses(RetransformSample.class);
+        }
+        assertEquals("original", RetransformSample.value());
+    }
+
+    @Test
+    public void preparedRetransformChangedTest() throws Exception {
+        JInjectorTransformer transformer = new JInjectorTransformer();
+        transformer.addTransform(valueTransform("prepared"));
+        transformer.prepareRetransform(RetransformSample.class);
+        transformer.addTransform(valueTransform("transformed"));
+
+        // the class changed since the preparation, e.g. by another agent
+        ClassPool classPool = new ClassPool(true);
+        CtClass ctClass = classPool.makeClass(new ByteArrayInputStream(classBytes(RetransformSample.class)));
+        ctClass.addField(CtField.make("public int added;", ctClass));
+        byte[] changed = ctClass.toBytecode();
+
+        byte[] bytes = transformer.transform(JInjectorTransformerTest.class.getClassLoader(),
+                RETRANSFORM_SAMPLE.replace('.', '/'), RetransformSample.class, null, changed);
+        assertNotSame(changed, bytes);
+        Class<?> clazz = new BytesLoader().define(RETRANSFORM_SAMPLE, bytes);
+        assertEquals("transformed", clazz.getMethod("value").invoke(null));
+        assertNotNull(clazz.getField("added"));
+    }
+
+    @Test
+    public void asyncTimeoutTest() throws Exception {
+        byte[] bytes = sampleBytes();
+        JInjectorTransformer transformer = createTransformer("fused.hswp");
+        AsyncInstrumentation instrumentation = new AsyncInstrumentation(transformer, bytes);
+        transformer.enableAsync(instrumentation.instrumentation(), 0);
+
+        // the transformation takes more than the budget, the class is loaded unpatched
+        BytesLoader loader = new BytesLoader();
+        byte[] loaded = transformer.transform(loader, SAMPLE.replace('.', '/'), null, null, bytes);
+        assertSame(bytes, loaded);
+
+        // a transform replaced now shows whether the retransformation transformed again
+        transformer.addTransform(sampleTransform("    $method(run())\n"
+                + "        .setBody {\n"
+                + "            return java.util.Collections.singletonList(\"replaced\");\n"
+                + "        }\n"));
+        // the retransformation waits until the loading thread defined the class
+        Thread.sleep(100);
+        instrumentation.defined = loader.define(SAMPLE, loaded);
+
+        byte[] retransformed = instrumentation.retransformed.get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("before3", "before2", "before1", "body", "after1", "after2", "after3"),
+                run(retransformed));
+    }
+
+    @Test
+    public void asyncWithinBudgetTest() throws Exception {
+        byte[] bytes = sampleBytes();
+        JInjectorTransformer transformer = createTransformer("fused.hswp");
+        AsyncInstrumentation instrumentation = new AsyncInstrumentation(transformer, bytes);
+        transformer.enableAsync(instrumentation.instrumentation(), 10000);
+
+        byte[] loaded = transformer.transform(new BytesLoader(), SAMPLE.replace('.', '/'), null, null, bytes);
+        assertEquals(Arrays.asList("before3", "before2", "before1", "body", "after1", "after2", "after3"),
+                run(loaded));
+        assertFalse(instrumentation.retransformed.isDone());
+    }
+
+    @Test
+    public void asyncSchemaChangeTest() throws Exception {
+        byte[] bytes = sampleBytes();
+        JInjectorTransformer transformer = new JInjectorTransformer();
+        transformer.addTransform(sampleTransform("    $field.new() {\n"
+                + "        public int added;\n"
+                + "    }\n"));
+        transformer.enableAsync(new AsyncInstrumentation(transformer, bytes).instrumentation(), 0);
+
+        // a retransformation cannot add the field, the class is transformed while loading whatever the budget
+        byte[] loaded = transformer.transform(new BytesLoader(), SAMPLE.replace('.', '/'), null, null, bytes);
+        assertNotNull(new BytesLoader().define(SAMPLE, loaded).getField("added"));
+    }
+}
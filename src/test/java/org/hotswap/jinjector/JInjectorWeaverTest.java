@@ -0,0 +1,87 @@
+package org.hotswap.jinjector;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+public class JInjectorWeaverTest {
+
+    private static final String SAMPLE = TransformSample.class.getName();
+    private static final String SAMPLE_ENTRY = SAMPLE.replace('.', '/') + ".class";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File inputJar() throws Exception {
+        File jar = new File(folder.newFolder("in"), "app.jar");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar.toPath()));
+             InputStream in = JInjectorWeaverTest.class.getResourceAsStream("TransformSample.class")) {
+            out.putNextEntry(new ZipEntry(SAMPLE_ENTRY));
+            out.write(in.readAllBytes());
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("readme.txt"));
+            out.write("text".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return jar;
+    }
+
+    private File patchFile(String name) throws Exception {
+        File file = folder.newFile(name);
+        try (InputStream in = JInjectorWeaverTest.class.getResourceAsStream(name)) {
+            Files.write(file.toPath(), in.readAllBytes());
+        }
+        return file;
+    }
+
+    @Test
+    public void weaveTest() throws Exception {
+        File outputDir = new File(folder.getRoot(), "out");
+        int status = JInjectorWeaver.run(new String[] {"-p", patchFile("fused.hswp").getPath(),
+                "-d", outputDir.getPath(), inputJar().getPath()});
+        assertEquals(0, status);
+
+        File outputJar = new File(outputDir, "app.jar");
+        try (ZipFile zipFile = new ZipFile(outputJar)) {
+            assertNotNull(zipFile.getEntry("readme.txt"));
+        }
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {outputJar.toURI().toURL()},
+                ClassLoader.getPlatformClassLoader())) {
+            Class<?> clazz = loader.loadClass(SAMPLE);
+            Object sample = clazz.getConstructor().newInstance();
+            assertEquals(Arrays.asList("before3", "before2", "before1", "body", "after1", "after2", "after3"),
+                    clazz.getMethod("run").invoke(sample));
+        }
+    }
+
+    @Test
+    public void failedPatchTest() throws Exception {
+        File outputDir = new File(folder.getRoot(), "out");
+        int status = JInjectorWeaver.run(new String[] {"-p", patchFile("broken.hswp").getPath(),
+                "-d", outputDir.getPath(), inputJar().getPath()});
+        assertEquals(JInjectorWeaver.EXIT_FAILED, status);
+        // no jar with the unpatched class is left behind
+        assertFalse(new File(outputDir, "app.jar").exists());
+    }
+
+    @Test
+    public void usageTest() throws Exception {
+        assertEquals(JInjectorWeaver.EXIT_USAGE, JInjectorWeaver.run(new String[] {"-d", "out"}));
+        assertEquals(JInjectorWeaver.EXIT_USAGE, JInjectorWeaver.run(new String[] {"-x"}));
+    }
+}
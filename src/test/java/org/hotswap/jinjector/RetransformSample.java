@@ -0,0 +1,24 @@
+package org.hotswap.jinjector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Loaded by the application class loader and retransformed by the tests. The bytes the JVM reconstitutes from
+ * the loaded class differ from its class file.
+ */
+public class RetransformSample {
+
+    private static final List<String> NAMES = new ArrayList<>();
+
+    public static String value() {
+        return "original";
+    }
+
+    public static String describe(int count) {
+        Supplier<String> name = () -> "sample" + count;
+        NAMES.add(name.get());
+        return NAMES.size() + " " + String.join(",", NAMES);
+    }
+}
@@ -0,0 +1,153 @@
+package org.hotswap.jinjector;
+
+import org.junit.Test;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetransformSchedulerTest {
+
+    /**
+     * Records the chunks passed to retransformClasses(), each call takes the given time per class.
+     */
+    static class ChunkRecorder {
+        final List<List<Class<?>>> chunks = Collections.synchronizedList(new ArrayList<>());
+        final long millisPerClass;
+        final Class<?> unmodifiable;
+
+        ChunkRecorder(long millisPerClass, Class<?> unmodifiable) {
+            this.millisPerClass = millisPerClass;
+            this.unmodifiable = unmodifiable;
+        }
+
+        Instrumentation instrumentation() {
+            return (Instrumentation) Proxy.newProxyInstance(RetransformSchedulerTest.class.getClassLoader(),
+                    new Class<?>[]{Instrumentation.class}, (proxy, method, args) -> {
+                        if (!method.getName().equals("retransformClasses")) {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                        List<Class<?>> chunk = Arrays.asList((Class<?>[]) args[0]);
+                        chunks.add(chunk);
+                        Thread.sleep(millisPerClass * chunk.size());
+                        if (chunk.contains(unmodifiable)) {
+                            throw new UnmodifiableClassException(unmodifiable.getName());
+                        }
+                        return null;
+                    });
+        }
+
+        List<Integer> sizes() {
+            List<Integer> sizes = new ArrayList<>();
+            for (List<Class<?>> chunk : chunks) {
+                sizes.add(chunk.size());
+            }
+            return sizes;
+        }
+    }
+
+    /**
+     * Parks the calling thread, the class is on its stack until released.
+     */
+    static class Hot {
+        static void park(CountDownLatch parked, CountDownLatch release) throws InterruptedException {
+            parked.countDown();
+            release.await();
+        }
+    }
+
+    private static RetransformScheduler run(ChunkRecorder recorder, long pauseBudgetMillis, List<Class<?>> classes) {
+        RetransformScheduler scheduler = new RetransformScheduler(recorder.instrumentation(), new JInjectorTransformer(),
+                pauseBudgetMillis, 0);
+        scheduler.setClasses(classes);
+        scheduler.run();
+        return scheduler;
+    }
+
+    @Test
+    public void fixedChunkTest() {
+        ChunkRecorder recorder = new ChunkRecorder(0, null);
+        RetransformScheduler scheduler = run(recorder, 0, Collections.nCopies(150, Integer.class));
+
+        assertEquals(Arrays.asList(64, 64, 22), recorder.sizes());
+        assertTrue(scheduler.isFinished());
+        assertEquals(150, scheduler.getTotalCount());
+        assertEquals(150, scheduler.getDoneCount());
+        assertEquals(0, scheduler.getFailedCount());
+    }
+
+    @Test
+    public void growingChunkTest() {
+        ChunkRecorder recorder = new ChunkRecorder(0, null);
+        run(recorder, 1000, Collections.nCopies(300, Integer.class));
+
+        // fast chunks double the size up to the budget
+        assertEquals(Arrays.asList(4, 8, 16, 32, 64, 128, 48), recorder.sizes());
+    }
+
+    @Test
+    public void slowChunkTest() {
+        // 10 ms per class and a budget of 30 ms, at most 3 classes per chunk after the first
+        ChunkRecorder recorder = new ChunkRecorder(10, null);
+        RetransformScheduler scheduler = run(recorder, 30, Collections.nCopies(16, Integer.class));
+
+        List<Integer> sizes = recorder.sizes();
+        assertEquals(4, (int) sizes.get(0));
+        int total = sizes.get(0);
+        for (int size : sizes.subList(1, sizes.size())) {
+            assertTrue("chunk of " + size, size >= 1 && size <= 3);
+            total += size;
+        }
+        assertEquals(16, total);
+        assertEquals(16, scheduler.getDoneCount());
+    }
+
+    @Test
+    public void failedChunkTest() {
+        ChunkRecorder recorder = new ChunkRecorder(0, String.class);
+        List<Class<?>> classes = new ArrayList<>(Collections.nCopies(3, Integer.class));
+        classes.add(String.class);
+        classes.addAll(Collections.nCopies(66, Long.class));
+        RetransformScheduler scheduler = run(recorder, 0, classes);
+
+        // the whole chunk fails, the scheduler goes on with the next one
+        assertEquals(Arrays.asList(64, 6), recorder.sizes());
+        assertTrue(scheduler.isFinished());
+        assertEquals(70, scheduler.getDoneCount());
+        assertEquals(64, scheduler.getFailedCount());
+    }
+
+    @Test
+    public void hotFirstTest() throws Exception {
+        CountDownLatch parked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                Hot.park(parked, release);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        try {
+            parked.await();
+            ChunkRecorder recorder = new ChunkRecorder(0, null);
+            run(recorder, 0, Arrays.asList(Integer.class, String.class, Hot.class, Long.class));
+
+            // the running class first, the others in the given order
+            assertEquals(Collections.singletonList(Arrays.asList(Hot.class, Integer.class, String.class, Long.class)),
+                    recorder.chunks);
+        } finally {
+            release.countDown();
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.hotswap.jinjector;
+
+import com.sun.tools.attach.VirtualMachine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.instrument.Instrumentation;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Agent loaded into the test JVM to get an Instrumentation, needs -Djdk.attach.allowAttachSelf=true.
+ */
+public class TestAgent {
+
+    private static volatile Instrumentation instrumentation;
+
+    public static void agentmain(String args, Instrumentation inst) {
+        instrumentation = inst;
+    }
+
+    public static synchronized Instrumentation getInstrumentation() throws Exception {
+        if (instrumentation == null) {
+            Manifest manifest = new Manifest();
+            Attributes attributes = manifest.getMainAttributes();
+            attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            attributes.putValue("Agent-Class", TestAgent.class.getName());
+            attributes.putValue("Can-Retransform-Classes", "true");
+            File jar = File.createTempFile("test-agent", ".jar");
+            jar.deleteOnExit();
+            new JarOutputStream(new FileOutputStream(jar), manifest).close();
+
+            VirtualMachine vm = VirtualMachine.attach(String.valueOf(ProcessHandle.current().pid()));
+            try {
+                vm.loadAgent(jar.getPath());
+            } finally {
+                vm.detach();
+            }
+        }
+        return instrumentation;
+    }
+}
@@ -0,0 +1,18 @@
+package org.hotswap.jinjector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TransformSample {
+    public final List<String> log = new ArrayList<>();
+
+    public List<String> run() {
+        log.add("body");
+        return log;
+    }
+
+    public List<String> check(boolean early) {
+        log.add("body");
+        return log;
+    }
+}
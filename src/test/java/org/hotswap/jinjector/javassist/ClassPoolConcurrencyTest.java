@@ -0,0 +1,107 @@
+package org.hotswap.jinjector.javassist;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertSame;
+
+public class ClassPoolConcurrencyTest {
+
+    private static final int THREADS = 8;
+
+    private static final String[] CLASSES = {
+            "java.lang.String", "java.lang.Thread", "java.util.ArrayList", "java.util.HashMap",
+            "java.util.LinkedList", "java.util.TreeMap", "java.util.concurrent.ConcurrentHashMap",
+            "java.io.File", "java.io.InputStream", "java.net.URL", "java.util.regex.Pattern",
+            "java.lang.StringBuilder", "java.util.Collections", "java.util.Arrays"
+    };
+
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            List<T> results = new ArrayList<>();
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentGetTest() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Callable<CtClass[]>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            tasks.add(() -> {
+                barrier.await();
+                CtClass[] result = new CtClass[CLASSES.length];
+                for (int i = 0; i < CLASSES.length; i++) {
+                    // the threads start with different classes
+                    int n = (i + offset) % CLASSES.length;
+                    result[n] = pool.get(CLASSES[n]);
+                    result[n].getSuperclass();
+                }
+                return result;
+            });
+        }
+
+        List<CtClass[]> results = runAll(tasks);
+        for (int i = 0; i < CLASSES.length; i++) {
+            CtClass expected = pool.get(CLASSES[i]);
+            for (CtClass[] result : results) {
+                assertSame(CLASSES[i], expected, result[i]);
+            }
+        }
+    }
+
+    @Test
+    public void concurrentMakeClassTest() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Callable<CtClass>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final String name = "test.Made" + t;
+            tasks.add(() -> {
+                barrier.await();
+                CtClass made = pool.makeClass(name);
+                // the classes made by the other threads are looked up meanwhile
+                pool.get("java.lang.Object");
+                return made;
+            });
+        }
+
+        List<CtClass> results = runAll(tasks);
+        for (int t = 0; t < THREADS; t++) {
+            assertSame(results.get(t), pool.get("test.Made" + t));
+        }
+    }
+
+    @Test
+    public void childPoolTest() throws Exception {
+        ClassPool parent = new ClassPool(true);
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Callable<CtClass>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final ClassPool child = new ClassPool(parent);
+            tasks.add(() -> {
+                barrier.await();
+                return child.get("java.util.HashMap");
+            });
+        }
+
+        for (CtClass ctClass : runAll(tasks)) {
+            assertSame(parent.get("java.util.HashMap"), ctClass);
+        }
+    }
+}
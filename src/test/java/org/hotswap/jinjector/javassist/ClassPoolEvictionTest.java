@@ -0,0 +1,115 @@
+package org.hotswap.jinjector.javassist;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClassPoolEvictionTest {
+
+    private static final int MAX_CLASSES = 30;
+
+    private static List<String> javaUtilClasses(int max) throws Exception {
+        List<String> names = new ArrayList<>();
+        Path dir = FileSystems.getFileSystem(URI.create("jrt:/")).getPath("/modules/java.base/java/util");
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.class")) {
+            for (Path path : stream) {
+                String fileName = path.getFileName().toString();
+                if (!fileName.contains("$")) {
+                    names.add("java.util." + fileName.substring(0, fileName.length() - ".class".length()));
+                }
+            }
+        }
+        Collections.sort(names);
+        assertTrue(names.size() >= max);
+        return names.subList(0, max);
+    }
+
+    private static void getAll(ClassPool pool, List<String> names) throws Exception {
+        for (String name : names) {
+            pool.get(name).getModifiers();
+        }
+    }
+
+    @Test
+    public void countLimitTest() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        pool.setCacheLimits(MAX_CLASSES, 0);
+        getAll(pool, javaUtilClasses(100));
+
+        assertTrue(pool.getEvictionCount() > 0);
+        assertTrue(pool.getCachedClassCount() <= MAX_CLASSES);
+    }
+
+    @Test
+    public void byteLimitTest() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        getAll(pool, javaUtilClasses(100));
+        long size = pool.getEstimatedCacheSize();
+
+        pool.setCacheLimits(0, size / 4);
+        assertTrue(pool.getEvictionCount() > 0);
+        assertTrue(pool.getEstimatedCacheSize() <= size / 4);
+    }
+
+    @Test
+    public void referencedClassTest() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        pool.setCacheLimits(MAX_CLASSES, 0);
+        CtClass held = pool.get("java.lang.Thread");
+        getAll(pool, javaUtilClasses(100));
+
+        // evicted, but still referenced here
+        assertSame(held, pool.get("java.lang.Thread"));
+    }
+
+    @Test
+    public void pinnedClassTest() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        pool.setCacheLimits(MAX_CLASSES, 0);
+        CtClass modified = pool.get("java.lang.Thread");
+        modified.addField(CtField.make("public int added;", modified));
+        int modifiedHash = System.identityHashCode(modified);
+        modified = null;
+        CtClass made = pool.makeClass("test.Made");
+        int madeHash = System.identityHashCode(made);
+        made = null;
+
+        getAll(pool, javaUtilClasses(100));
+        System.gc();
+
+        CtClass thread = pool.get("java.lang.Thread");
+        assertEquals(modifiedHash, System.identityHashCode(thread));
+        assertNotNull(thread.getField("added"));
+        assertEquals(madeHash, System.identityHashCode(pool.get("test.Made")));
+    }
+
+    @Test
+    public void droppedClassTest() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        pool.setCacheLimits(MAX_CLASSES, 0);
+        int hash = System.identityHashCode(pool.get("java.lang.Thread"));
+        List<String> names = javaUtilClasses(100);
+
+        boolean reread = false;
+        for (int i = 0; i < 10 && !reread; i++) {
+            getAll(pool, names);
+            System.gc();
+            reread = hash != System.identityHashCode(pool.get("java.lang.Thread"));
+        }
+        assertTrue(reread);
+        assertNotEquals(0, pool.getEvictionCount());
+    }
+}
@@ -0,0 +1,117 @@
+package org.hotswap.jinjector.javassist;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ClassPoolTailTest {
+
+    /**
+     * A class path whose content may change, it is never treated as immutable.
+     */
+    static class MapClassPath implements ClassPath {
+        final Map<String, byte[]> classes = new HashMap<>();
+        int finds, opens;
+
+        @Override
+        public synchronized InputStream openClassfile(String classname) {
+            opens++;
+            byte[] bytes = classes.get(classname);
+            return bytes == null ? null : new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public synchronized URL find(String classname) {
+            finds++;
+            return classes.containsKey(classname) ? new ByteArrayClassPath(classname, null).find(classname) : null;
+        }
+    }
+
+    /**
+     * An immutable class path counting the searches.
+     */
+    static class CountingClassPath extends ByteArrayClassPath {
+        int finds;
+
+        CountingClassPath(String name, byte[] classfile) {
+            super(name, classfile);
+        }
+
+        @Override
+        public synchronized URL find(String classname) {
+            finds++;
+            return super.find(classname);
+        }
+    }
+
+    private static byte[] classBytes(String name) throws Exception {
+        return new ClassPool(true).makeClass(name).toBytecode();
+    }
+
+    @Test
+    public void foundHandleTest() throws Exception {
+        ClassPool pool = new ClassPool(null);
+        MapClassPath first = new MapClassPath();
+        pool.appendClassPath(first);
+        pool.appendClassPath(new ByteArrayClassPath("x.Y", classBytes("x.Y")));
+
+        assertNotNull(pool.find("x.Y"));
+        assertEquals(1, first.finds);
+        // the class file is opened where it was found
+        assertNotNull(pool.get("x.Y"));
+        assertEquals(0, first.opens);
+    }
+
+    @Test
+    public void immutableMissTest() throws Exception {
+        ClassPool pool = new ClassPool(null);
+        CountingClassPath cp = new CountingClassPath("a.B", classBytes("a.B"));
+        pool.appendClassPath(cp);
+
+        assertNull(pool.find("x.Y"));
+        assertNull(pool.find("x.Y"));
+        assertEquals(1, cp.finds);
+
+        pool.clearClassPathCache();
+        assertNull(pool.find("x.Y"));
+        assertEquals(2, cp.finds);
+
+        pool.insertClassPath(new ByteArrayClassPath("x.Y", classBytes("x.Y")));
+        assertNotNull(pool.get("x.Y"));
+    }
+
+    @Test
+    public void mutableMissTest() throws Exception {
+        ClassPool pool = new ClassPool(null);
+        MapClassPath cp = new MapClassPath();
+        pool.appendClassPath(new ByteArrayClassPath("a.B", classBytes("a.B")));
+        pool.appendClassPath(cp);
+
+        assertNull(pool.find("x.Y"));
+        assertNull(pool.find("x.Y"));
+        assertEquals(2, cp.finds);
+
+        // found without clearClassPathCache()
+        cp.classes.put("x.Y", classBytes("x.Y"));
+        assertNotNull(pool.get("x.Y"));
+    }
+
+    @Test
+    public void removeClassPathTest() throws Exception {
+        ClassPool pool = new ClassPool(null);
+        ClassPath cp = pool.appendClassPath(new ByteArrayClassPath("x.Y", classBytes("x.Y")));
+        assertNotNull(pool.find("x.Y"));
+
+        pool.removeClassPath(cp);
+        assertNull(pool.find("x.Y"));
+        assertNull(pool.openClassfile("x.Y"));
+    }
+}
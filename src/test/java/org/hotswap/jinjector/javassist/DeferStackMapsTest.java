@@ -0,0 +1,101 @@
+package org.hotswap.jinjector.javassist;
+
+import org.hotswap.jinjector.javassist.bytecode.CodeAttribute;
+import org.hotswap.jinjector.javassist.bytecode.StackMapTable;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeferStackMapsTest {
+
+    public static class Sample {
+        public int countPositive(int[] values) {
+            int n = 0;
+            for (int v : values) {
+                if (v > 0) {
+                    n++;
+                }
+            }
+            return n;
+        }
+    }
+
+    private static CtClass sample(String name) throws Exception {
+        ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new ClassClassPath(Sample.class));
+        CtClass ctClass = pool.get(Sample.class.getName());
+        ctClass.setName(name);
+        return ctClass;
+    }
+
+    private static void patch(CtClass ctClass) throws Exception {
+        CtMethod method = ctClass.getDeclaredMethod("countPositive");
+        // the null check is inserted last, so it runs first
+        method.insertBefore("if ($1.length == 0) { return -2; }");
+        method.insertBefore("if ($1 == null) { return -1; }");
+        method.insertAfter("if ($_ > 100) { $_ = 100; }");
+        method.insertAfter("if ($_ == 0) { $_ = -3; }");
+    }
+
+    private static StackMapTable stackMap(CtClass ctClass) throws Exception {
+        CodeAttribute code = ctClass.getDeclaredMethod("countPositive").getMethodInfo2().getCodeAttribute();
+        return (StackMapTable)code.getAttribute(StackMapTable.tag);
+    }
+
+    @Test
+    public void sameBytecodeTest() throws Exception {
+        CtClass eager = sample("test.EagerSample");
+        patch(eager);
+
+        CtClass deferred = sample("test.EagerSample");
+        assertFalse(deferred.deferStackMaps(true));
+        patch(deferred);
+
+        assertArrayEquals(eager.toBytecode(), deferred.toBytecode());
+    }
+
+    @Test
+    public void staleStackMapTest() throws Exception {
+        CtClass ctClass = sample("test.StaleSample");
+        ctClass.deferStackMaps(true);
+        patch(ctClass);
+        assertNull(stackMap(ctClass));
+
+        ctClass.rebuildStackMaps();
+        assertNotNull(stackMap(ctClass));
+    }
+
+    @Test
+    public void turnOffTest() throws Exception {
+        CtClass ctClass = sample("test.TurnOffSample");
+        ctClass.deferStackMaps(true);
+        patch(ctClass);
+
+        assertTrue(ctClass.deferStackMaps(false));
+        assertNotNull(stackMap(ctClass));
+        ctClass.getDeclaredMethod("countPositive").insertBefore("if ($1.length > 1000) { return -4; }");
+        assertNotNull(stackMap(ctClass));
+    }
+
+    @Test
+    public void verifiedTest() throws Exception {
+        CtClass ctClass = sample("test.VerifiedSample");
+        ctClass.deferStackMaps(true);
+        patch(ctClass);
+
+        Class<?> clazz = new Loader(ctClass.getClassPool()).loadClass("test.VerifiedSample");
+        Object instance = clazz.getConstructor().newInstance();
+        Method method = clazz.getMethod("countPositive", int[].class);
+        assertEquals(-1, method.invoke(instance, (Object)null));
+        assertEquals(-2, method.invoke(instance, (Object)new int[0]));
+        assertEquals(-3, method.invoke(instance, (Object)new int[] { -1 }));
+        assertEquals(2, method.invoke(instance, (Object)new int[] { 1, -1, 2 }));
+    }
+}
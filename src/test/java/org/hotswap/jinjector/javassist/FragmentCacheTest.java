@@ -0,0 +1,173 @@
+package org.hotswap.jinjector.javassist;
+
+import org.hotswap.jinjector.javassist.bytecode.ClassFile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+
+public class FragmentCacheTest {
+
+    public static class Counter {
+        public int value;
+
+        public int next() {
+            return ++value;
+        }
+    }
+
+    public static class OtherCounter {
+        public int value;
+
+        public int next() {
+            return value += 2;
+        }
+    }
+
+    public static class LongCounter {
+        public long value;
+
+        public int next() {
+            return (int)++value;
+        }
+    }
+
+    static class BytesLoader extends ClassLoader {
+        BytesLoader() {
+            super(null);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    private static final String FRAGMENT = "value += Integer.parseInt(\"10\");";
+
+    private static CtClass counter(ClassPool parent, int padding) throws IOException {
+        return load(parent, Counter.class, padding);
+    }
+
+    private static CtClass load(ClassPool parent, Class<?> clazz, int padding) throws IOException {
+        ClassPool pool = new ClassPool(parent);
+        String resource = "/" + clazz.getName().replace('.', '/') + ".class";
+        CtClass ctClass;
+        try (InputStream in = clazz.getResourceAsStream(resource)) {
+            // like JInjectorTransformer, not checked against the parent pool
+            ctClass = pool.makeClass(new ClassFile(in.readAllBytes()), false);
+        }
+        for (int i = 0; i < padding; i++) {
+            // shifts the indexes of the constants added by the fragment
+            ctClass.getClassFile().getConstPool().addUtf8Info("padding" + i);
+        }
+        return ctClass;
+    }
+
+    private static int callNext(CtClass ctClass) throws Exception {
+        Class<?> clazz = new BytesLoader().define(ctClass.getName(), ctClass.toBytecode());
+        Object instance = clazz.getConstructor().newInstance();
+        return (Integer)clazz.getMethod("next").invoke(instance);
+    }
+
+    @Test
+    public void reuseTest() throws Exception {
+        ClassPool parent = new ClassPool(true);
+        FragmentCache cache = new FragmentCache(16);
+
+        CtClass first = counter(parent, 0);
+        cache.insertBefore(first.getDeclaredMethod("next"), FRAGMENT);
+        CtClass second = counter(parent, 7);
+        cache.insertBefore(second.getDeclaredMethod("next"), FRAGMENT);
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(11, callNext(first));
+        assertEquals(11, callNext(second));
+    }
+
+    @Test
+    public void afterAndBodyTest() throws Exception {
+        ClassPool parent = new ClassPool(true);
+        FragmentCache cache = new FragmentCache(16);
+
+        for (int i = 0; i < 2; i++) {
+            CtClass ctClass = counter(parent, i * 5);
+            cache.insertAfter(ctClass.getDeclaredMethod("next"), "$_ = $_ * 2;");
+            assertEquals(2, callNext(ctClass));
+        }
+        for (int i = 0; i < 2; i++) {
+            CtClass ctClass = counter(parent, i * 5);
+            cache.setBody(ctClass.getDeclaredMethod("next"), "{ return value - 1; }");
+            assertEquals(-1, callNext(ctClass));
+        }
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void otherClassTest() throws Exception {
+        ClassPool parent = new ClassPool(true);
+        FragmentCache cache = new FragmentCache(16);
+
+        CtClass first = counter(parent, 0);
+        cache.insertBefore(first.getDeclaredMethod("next"), FRAGMENT);
+        CtClass second = load(parent, OtherCounter.class, 3);
+        cache.insertBefore(second.getDeclaredMethod("next"), FRAGMENT);
+
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(11, callNext(first));
+        // the field of OtherCounter is updated, not the field of Counter
+        assertEquals(12, callNext(second));
+    }
+
+    @Test
+    public void otherMembersTest() throws Exception {
+        ClassPool parent = new ClassPool(true);
+        FragmentCache cache = new FragmentCache(16);
+
+        cache.insertBefore(counter(parent, 0).getDeclaredMethod("next"), FRAGMENT);
+        // value is a long field in LongCounter
+        CtClass other = load(parent, LongCounter.class, 0);
+        cache.insertBefore(other.getDeclaredMethod("next"), FRAGMENT);
+
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(11, callNext(other));
+    }
+
+    @Test
+    public void namedClassTest() throws Exception {
+        ClassPool parent = new ClassPool(true);
+        FragmentCache cache = new FragmentCache(16);
+        String src = "value += " + Counter.class.getName().replace('$', '.') + ".class.getName().length();";
+
+        CtClass first = counter(parent, 0);
+        cache.insertBefore(first.getDeclaredMethod("next"), src);
+        CtClass second = counter(parent, 0);
+        cache.insertBefore(second.getDeclaredMethod("next"), src);
+        CtClass other = load(parent, OtherCounter.class, 0);
+        cache.insertBefore(other.getDeclaredMethod("next"), src);
+
+        assertEquals(2, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(Counter.class.getName().length() + 1, callNext(second));
+    }
+
+    @Test
+    public void otherPoolTest() throws Exception {
+        FragmentCache cache = new FragmentCache(16);
+
+        CtClass first = counter(new ClassPool(true), 0);
+        cache.insertBefore(first.getDeclaredMethod("next"), FRAGMENT);
+        // java.lang.Integer is obtained from another class pool
+        CtClass second = counter(new ClassPool(true), 0);
+        cache.insertBefore(second.getDeclaredMethod("next"), FRAGMENT);
+
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(11, callNext(second));
+    }
+}
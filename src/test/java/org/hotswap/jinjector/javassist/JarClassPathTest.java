@@ -0,0 +1,102 @@
+package org.hotswap.jinjector.javassist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class JarClassPathTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes a jar, each entry contains its own name.
+     */
+    static File writeJar(File file, String... entryNames) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file))) {
+            for (String name : entryNames) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    static String read(InputStream in) throws IOException {
+        try (InputStream is = in) {
+            return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void findTest() throws Exception {
+        File jar = writeJar(folder.newFile("a.jar"), "p/A.class", "p/q/B.class", "p/res.txt");
+        JarClassPath cp = new JarClassPath(jar.getPath());
+
+        URL url = cp.find("p.A");
+        assertNotNull(url);
+        assertEquals("jar:" + jar.getCanonicalFile().toURI() + "!/p/A.class", url.toString());
+        assertEquals("p/A.class", read(url.openStream()));
+        assertNotNull(cp.find("p.q.B"));
+        assertNull(cp.find("p.res"));
+        assertNull(cp.find("p.C"));
+        cp.close();
+    }
+
+    @Test
+    public void openClassfileTest() throws Exception {
+        File jar = writeJar(folder.newFile("a.jar"), "p/A.class", "B.class");
+        JarClassPath cp = new JarClassPath(jar.getPath());
+
+        assertEquals("p/A.class", read(cp.openClassfile("p.A")));
+        assertEquals("B.class", read(cp.openClassfile("B")));
+        assertNull(cp.openClassfile("p.C"));
+        cp.close();
+    }
+
+    @Test
+    public void packageNamesTest() throws Exception {
+        File jar = writeJar(folder.newFile("a.jar"), "p/A.class", "p/q/B.class", "C.class", "r/res.txt");
+        JarClassPath cp = new JarClassPath(jar.getPath());
+
+        assertEquals(new HashSet<>(Arrays.asList("p", "p/q", "")), cp.packageNames());
+        cp.close();
+    }
+
+    @Test
+    public void removeClassPathTest() throws Exception {
+        File jar = writeJar(folder.newFile("a.jar"), "p/A.class");
+        ClassPool pool = new ClassPool(null);
+        ClassPath cp = pool.appendClassPath(jar.getPath());
+        assertNotNull(cp.openClassfile("p.A"));
+
+        pool.removeClassPath(cp);
+        // the jar file is closed
+        assertNull(cp.openClassfile("p.A"));
+        assertNull(pool.find("p.A"));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void notJarTest() throws Exception {
+        File file = folder.newFile("broken.jar");
+        Files.write(file.toPath(), "not a jar".getBytes(StandardCharsets.UTF_8));
+        new JarClassPath(file.getPath());
+    }
+}
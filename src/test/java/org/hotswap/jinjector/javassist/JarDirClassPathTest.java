@@ -0,0 +1,92 @@
+package org.hotswap.jinjector.javassist;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.hotswap.jinjector.javassist.JarClassPathTest.read;
+import static org.hotswap.jinjector.javassist.JarClassPathTest.writeJar;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JarDirClassPathTest {
+
+    // longer than the interval of the time stamp checks
+    private static final long CHECK_WAIT_MILLIS = 1100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void touch(File file) {
+        assertTrue(file.setLastModified(file.lastModified() + 2000));
+    }
+
+    @Test
+    public void lookupTest() throws Exception {
+        File dir = folder.newFolder("lib");
+        writeJar(new File(dir, "a.jar"), "p/A.class", "p/Shared.class");
+        writeJar(new File(dir, "b.zip"), "q/B.class", "p/Shared.class");
+        Files.write(new File(dir, "readme.txt").toPath(), "text".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(dir, "broken.jar").toPath(), "not a jar".getBytes(StandardCharsets.UTF_8));
+
+        JarDirClassPath cp = new JarDirClassPath(dir.getPath());
+        URL url = cp.find("p.A");
+        assertNotNull(url);
+        assertTrue(url.toString().contains("a.jar!/"));
+        assertTrue(cp.find("q.B").toString().contains("b.zip!/"));
+        assertNotNull(cp.find("p.Shared"));
+        assertEquals("q/B.class", read(cp.openClassfile("q.B")));
+        assertNull(cp.find("p.C"));
+        assertNull(cp.find("r.C"));
+        assertNull(cp.openClassfile("r.C"));
+        cp.close();
+    }
+
+    @Test
+    public void appendClassPathTest() throws Exception {
+        File dir = folder.newFolder("lib");
+        writeJar(new File(dir, "a.jar"), "p/A.class");
+
+        ClassPool pool = new ClassPool(null);
+        pool.appendClassPath(dir.getPath() + File.separator + "*");
+        assertNotNull(pool.find("p.A"));
+        assertNull(pool.find("p.B"));
+    }
+
+    @Test
+    public void addedJarTest() throws Exception {
+        File dir = folder.newFolder("lib");
+        writeJar(new File(dir, "a.jar"), "p/A.class");
+        JarDirClassPath cp = new JarDirClassPath(dir.getPath());
+        assertNull(cp.find("r.C"));
+
+        writeJar(new File(dir, "c.jar"), "r/C.class");
+        touch(dir);
+        Thread.sleep(CHECK_WAIT_MILLIS);
+        assertNotNull(cp.find("r.C"));
+        assertNotNull(cp.find("p.A"));
+        cp.close();
+    }
+
+    @Test
+    public void replacedJarTest() throws Exception {
+        File dir = folder.newFolder("lib");
+        File jar = writeJar(new File(dir, "a.jar"), "p/A.class");
+        JarDirClassPath cp = new JarDirClassPath(dir.getPath());
+        assertNotNull(cp.find("p.A"));
+
+        writeJar(jar, "p/A2.class");
+        touch(jar);
+        Thread.sleep(CHECK_WAIT_MILLIS);
+        assertNull(cp.find("p.A"));
+        assertEquals("p/A2.class", read(cp.openClassfile("p.A2")));
+        cp.close();
+    }
+}
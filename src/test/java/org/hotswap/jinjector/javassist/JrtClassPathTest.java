@@ -0,0 +1,64 @@
+package org.hotswap.jinjector.javassist;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class JrtClassPathTest {
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        try (InputStream is = in) {
+            return is.readAllBytes();
+        }
+    }
+
+    @Test
+    public void findTest() throws Exception {
+        JrtClassPath cp = new JrtClassPath();
+        assertEquals("jrt:/java.base/java/lang/String.class", cp.find("java.lang.String").toString());
+        assertEquals(Object.class.getResource("/java/lang/String.class").toString(),
+                cp.find("java.lang.String").toString());
+        assertNotNull(cp.find("java.util.concurrent.ConcurrentHashMap"));
+    }
+
+    @Test
+    public void openClassfileTest() throws Exception {
+        JrtClassPath cp = new JrtClassPath();
+        byte[] expected = readAll(Object.class.getResourceAsStream("/java/lang/String.class"));
+        assertArrayEquals(expected, readAll(cp.openClassfile("java.lang.String")));
+        assertArrayEquals(expected, readAll(cp.find("java.lang.String").openStream()));
+    }
+
+    @Test
+    public void missingTest() throws Exception {
+        JrtClassPath cp = new JrtClassPath();
+        assertNull(cp.find("java.lang.NoSuchClass"));
+        assertNull(cp.openClassfile("java.lang.NoSuchClass"));
+        assertNull(cp.find("no.such.pkg.Test"));
+        assertNull(cp.openClassfile("no.such.pkg.Test"));
+        assertNull(cp.find("DefaultPackage"));
+    }
+
+    @Test
+    public void visibleModulesTest() throws Exception {
+        JrtClassPath boot = new JrtClassPath((ClassLoader)null);
+        assertNotNull(boot.find("java.lang.String"));
+        // java.sql is defined by the platform class loader
+        assertNull(boot.find("java.sql.Connection"));
+
+        JrtClassPath system = new JrtClassPath(ClassLoader.getSystemClassLoader());
+        assertNotNull(system.find("java.sql.Connection"));
+        assertNotNull(new JrtClassPath().find("java.sql.Connection"));
+    }
+
+    @Test
+    public void systemPathTest() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        assertEquals("jrt", pool.find("java.lang.String").getProtocol());
+    }
+}
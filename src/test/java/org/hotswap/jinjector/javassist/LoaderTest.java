@@ -0,0 +1,163 @@
+package org.hotswap.jinjector.javassist;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LoaderTest {
+
+    private static final int THREADS = 8;
+
+    private static final int CLASSES = 32;
+
+    /**
+     * Counts the calls of onLoad() for each class name.
+     */
+    static class CountingTranslator implements Translator {
+        final Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+
+        @Override
+        public void start(ClassPool pool) {
+        }
+
+        @Override
+        public void onLoad(ClassPool pool, String classname) throws NotFoundException, CannotCompileException {
+            loads.computeIfAbsent(classname, k -> new AtomicInteger()).incrementAndGet();
+        }
+    }
+
+    private static ClassPool poolWithClasses(String prefix, int count) {
+        ClassPool pool = new ClassPool(true);
+        for (int i = 0; i < count; i++) {
+            pool.makeClass(prefix + i);
+        }
+        return pool;
+    }
+
+    @Test
+    public void parallelCapableTest() {
+        assertTrue(new Loader(new ClassPool(true)).isRegisteredAsParallelCapable());
+    }
+
+    @Test
+    public void concurrentLoadTest() throws Exception {
+        ClassPool pool = poolWithClasses("test.Loaded", CLASSES);
+        Loader loader = new Loader(pool);
+        CountingTranslator translator = new CountingTranslator();
+        loader.addTranslator(pool, translator);
+
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Callable<Class<?>[]>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            tasks.add(() -> {
+                barrier.await();
+                Class<?>[] result = new Class<?>[CLASSES];
+                for (int i = 0; i < CLASSES; i++) {
+                    // the threads start with different classes
+                    int n = (i + offset) % CLASSES;
+                    result[n] = loader.loadClass("test.Loaded" + n);
+                }
+                return result;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Class<?>[]> results = new ArrayList<>();
+            for (Future<Class<?>[]> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+            for (int i = 0; i < CLASSES; i++) {
+                Class<?> expected = loader.loadClass("test.Loaded" + i);
+                assertSame(loader, expected.getClassLoader());
+                for (Class<?>[] result : results) {
+                    assertSame(expected, result[i]);
+                }
+                // each class is translated and defined once
+                assertEquals(1, translator.loads.get("test.Loaded" + i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void perNameLockTest() throws Exception {
+        ClassPool pool = poolWithClasses("test.Locked", 2);
+        Loader loader = new Loader(pool);
+        CountDownLatch translating = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        loader.addTranslator(pool, new Translator() {
+            @Override
+            public void start(ClassPool pool) {
+            }
+
+            @Override
+            public void onLoad(ClassPool pool, String classname) {
+                if (classname.equals("test.Locked0")) {
+                    translating.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Class<?>> blocked = executor.submit(() -> loader.loadClass("test.Locked0"));
+            assertTrue(translating.await(10, TimeUnit.SECONDS));
+
+            // another class is loaded while the first one is being translated
+            Future<Class<?>> other = executor.submit(() -> loader.loadClass("test.Locked1"));
+            assertNotNull(other.get(10, TimeUnit.SECONDS));
+            assertFalse(blocked.isDone());
+
+            release.countDown();
+            assertNotNull(blocked.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void notFoundTest() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        Loader loader = new Loader(pool);
+        CountingTranslator translator = new CountingTranslator();
+        loader.addTranslator(pool, translator);
+
+        try {
+            loader.loadClass("test.Later");
+            fail();
+        } catch (ClassNotFoundException e) {
+            // expected
+        }
+        // a class added to the pool later is found, the miss is not cached
+        pool.makeClass("test.Later");
+        assertSame(loader, loader.loadClass("test.Later").getClassLoader());
+        assertEquals(2, translator.loads.get("test.Later").get());
+    }
+}
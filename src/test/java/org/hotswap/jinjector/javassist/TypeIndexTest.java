@@ -0,0 +1,106 @@
+package org.hotswap.jinjector.javassist;
+
+import org.hotswap.jinjector.javassist.bytecode.MethodInfo;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TypeIndexTest {
+
+    private static final String KEY = "test";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TypeIndex writeIndex(String... classNames) throws Exception {
+        ClassPool pool = new ClassPool(null);
+        pool.appendClassPath(new JrtClassPath());
+        for (String name : classNames) {
+            pool.get(name);
+        }
+        File file = folder.newFile("types.idx");
+        try (OutputStream out = new FileOutputStream(file)) {
+            assertEquals(classNames.length, TypeIndex.write(out, KEY, pool, null));
+        }
+        return TypeIndex.open(file, KEY);
+    }
+
+    private static ClassPool indexedPool(TypeIndex index) throws Exception {
+        ClassPool pool = new ClassPool(null);
+        pool.appendClassPath(index);
+        pool.appendClassPath(new JrtClassPath());
+        return pool;
+    }
+
+    @Test
+    public void declarationsTest() throws Exception {
+        TypeIndex index = writeIndex("java.lang.String", "java.util.ArrayList");
+        assertTrue(index.contains("java.lang.String"));
+        ClassPool pool = indexedPool(index);
+
+        CtClass string = pool.get("java.lang.String");
+        assertNotNull(string.getDeclaredMethod("isBlank"));
+        assertEquals("java.lang.Object", string.getSuperclass().getName());
+        assertNotNull(string.getClassFile2().getAttribute(TypeIndex.STRIPPED_TAG));
+    }
+
+    @Test
+    public void methodBodyTest() throws Exception {
+        ClassPool pool = indexedPool(writeIndex("java.lang.String"));
+        CtMethod isBlank = pool.get("java.lang.String").getDeclaredMethod("isBlank");
+
+        MethodInfo minfo = isBlank.getMethodInfo2();
+        assertNotNull(minfo.getCodeAttribute());
+        assertSame(minfo, isBlank.getMethodInfo2());
+        assertNull(isBlank.getDeclaringClass().getClassFile2().getAttribute(TypeIndex.STRIPPED_TAG));
+    }
+
+    @Test
+    public void attributesTest() throws Exception {
+        ClassPool pool = indexedPool(writeIndex("java.util.ArrayList", "java.lang.Thread"));
+        assertNotNull(pool.get("java.util.ArrayList").getGenericSignature());
+
+        CtMethod stop = pool.get("java.lang.Thread").getDeclaredMethod("stop", new CtClass[0]);
+        assertTrue(stop.hasAnnotation("java.lang.Deprecated"));
+    }
+
+    @Test
+    public void toBytecodeTest() throws Exception {
+        ClassPool pool = indexedPool(writeIndex("java.lang.String"));
+        byte[] bytes = pool.get("java.lang.String").toBytecode();
+
+        ClassPool jrtPool = new ClassPool(null);
+        jrtPool.appendClassPath(new JrtClassPath());
+        assertArrayEquals(jrtPool.get("java.lang.String").toBytecode(), bytes);
+    }
+
+    @Test
+    public void notModifiableTest() throws Exception {
+        ClassPool pool = indexedPool(writeIndex("java.lang.String"));
+        CtClass string = pool.get("java.lang.String");
+        try {
+            string.addField(new CtField(CtClass.intType, "added", string));
+            fail("a class read from a type index was modified");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("type index"));
+        }
+    }
+
+    @Test
+    public void otherKeyTest() throws Exception {
+        writeIndex("java.lang.String");
+        assertNull(TypeIndex.open(new File(folder.getRoot(), "types.idx"), "other"));
+    }
+}
@@ -0,0 +1,99 @@
+package org.hotswap.jinjector.javassist.bytecode;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.hotswap.jinjector.javassist.bytecode.ConstPoolTest.classBytes;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class ClassFileTest {
+
+    private static final String[] CLASSES = {
+            "java.lang.String", "java.util.ArrayList", "java.util.HashMap", "java.lang.Thread"
+    };
+
+    private static byte[] write(ClassFile cf) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        cf.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ClassFile eager(byte[] bytes) throws IOException {
+        return new ClassFile(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static byte[] code(ClassFile cf, String methodName) {
+        CodeAttribute code = cf.getMethod(methodName).getCodeAttribute();
+        assertNotNull(code);
+        return code.getCode();
+    }
+
+    @Test
+    public void roundTripTest() throws Exception {
+        for (String className : CLASSES) {
+            byte[] bytes = classBytes(className);
+            assertArrayEquals(className, bytes, write(new ClassFile(bytes)));
+            assertArrayEquals(className, bytes, write(eager(bytes)));
+        }
+    }
+
+    @Test
+    public void readMemberTest() throws Exception {
+        byte[] bytes = classBytes("java.lang.String");
+        ClassFile cf = new ClassFile(bytes);
+        cf.getMethod("isBlank").getAttributes();
+        cf.getFields().get(0).getAttributes();
+
+        assertArrayEquals(bytes, write(cf));
+    }
+
+    @Test
+    public void grownConstPoolTest() throws Exception {
+        byte[] bytes = classBytes("java.lang.String");
+        ClassFile cf = new ClassFile(bytes);
+        ConstPool cp = cf.getConstPool();
+        cp.addUtf8Info("addedConstant");
+        cf.addField(new FieldInfo(cp, "added", "I"));
+
+        ClassFile copy = eager(write(cf));
+        assertEquals(eager(bytes).getFields().size() + 1, copy.getFields().size());
+        assertArrayEquals(code(eager(bytes), "isBlank"), code(copy, "isBlank"));
+        assertEquals(eager(bytes).getMethods().size(), copy.getMethods().size());
+    }
+
+    @Test
+    public void toBytecodeTest() throws Exception {
+        for (String className : CLASSES) {
+            byte[] bytes = classBytes(className);
+            assertArrayEquals(className, bytes, new ClassFile(bytes).toBytecode());
+            assertArrayEquals(className, bytes, eager(bytes).toBytecode());
+            assertEquals(className, bytes.length, new ClassFile(bytes).length());
+        }
+    }
+
+    @Test
+    public void toBytecodeModifiedTest() throws Exception {
+        byte[] bytes = classBytes("java.lang.String");
+        for (ClassFile cf : new ClassFile[] { new ClassFile(bytes), eager(bytes) }) {
+            ConstPool cp = cf.getConstPool();
+            cp.addUtf8Info("non-ASCII \u00e9\u4e2d and NUL \u0000");
+            cp.addStringInfo("\ud83d\ude00");
+            cp.addLongInfo(42L);
+            cf.addField(new FieldInfo(cp, "added", "Ljava/lang/String;"));
+            cf.getMethod("isBlank").getCodeAttribute().getCode()[0] = (byte)Opcode.NOP;
+
+            byte[] written = write(cf);
+            assertEquals(written.length, cf.length());
+            assertArrayEquals(written, cf.toBytecode());
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.hotswap.jinjector.javassist.bytecode;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConstPoolTest {
+
+    static byte[] classBytes(String className) throws IOException {
+        try (InputStream in = Object.class.getResourceAsStream("/" + className.replace('.', '/') + ".class")) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static ConstPool eagerPool(byte[] bytes) throws IOException {
+        return new ClassFile(new DataInputStream(new ByteArrayInputStream(bytes))).getConstPool();
+    }
+
+    private static ConstPool lazyPool(byte[] bytes) throws IOException {
+        return new ClassFile(bytes).getConstPool();
+    }
+
+    private static int decodedItems(ConstPool cp) {
+        int decoded = 0;
+        for (int i = 1; i < cp.getSize(); i++) {
+            if (cp.items.elementAt(i) != null) {
+                decoded++;
+            }
+        }
+        return decoded;
+    }
+
+    private static int findUtf8(ConstPool cp, String value) {
+        for (int i = 1; i < cp.getSize(); i++) {
+            if (cp.getTag(i) == ConstPool.CONST_Utf8 && value.equals(cp.getUtf8Info(i))) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static String print(ConstPool cp) {
+        StringWriter text = new StringWriter();
+        cp.print(new PrintWriter(text));
+        return text.toString();
+    }
+
+    private static byte[] write(ConstPool cp) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        cp.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void lazyDecodeTest() throws Exception {
+        byte[] bytes = classBytes("java.lang.String");
+        ConstPool eager = eagerPool(bytes);
+        ConstPool lazy = lazyPool(bytes);
+
+        assertEquals(eager.getSize(), lazy.getSize());
+        for (int i = 1; i < eager.getSize(); i++) {
+            assertEquals(eager.getTag(i), lazy.getTag(i));
+        }
+        assertEquals(eager.getClassNames(), lazy.getClassNames());
+        assertTrue(decodedItems(lazy) < lazy.getSize() / 2);
+
+        int utf8 = findUtf8(eager, "isBlank");
+        assertNull(lazy.items.elementAt(utf8));
+        assertEquals("isBlank", lazy.getUtf8Info(utf8));
+        assertNotNull(lazy.items.elementAt(utf8));
+
+        assertEquals(print(eager), print(lazy));
+    }
+
+    @Test
+    public void lazyWriteTest() throws Exception {
+        byte[] bytes = classBytes("java.lang.String");
+        ConstPool eager = eagerPool(bytes);
+        ConstPool lazy = lazyPool(bytes);
+
+        assertArrayEquals(write(eager), write(lazy));
+        lazy.getUtf8Info(findUtf8(eager, "isBlank"));
+        assertArrayEquals(write(eager), write(lazy));
+    }
+
+    @Test
+    public void addExistingTest() throws Exception {
+        ConstPool cp = lazyPool(classBytes("java.lang.String"));
+        int size = cp.getSize();
+
+        int index = cp.addUtf8Info("isBlank");
+        assertEquals("isBlank", cp.getUtf8Info(index));
+        assertEquals(cp.getThisClassInfo(), cp.addClassInfo("java.lang.String"));
+        assertEquals(size, cp.getSize());
+        assertTrue(decodedItems(cp) < cp.getSize() / 2);
+    }
+
+    @Test
+    public void addNewTest() throws Exception {
+        ConstPool cp = lazyPool(classBytes("java.lang.String"));
+        int size = cp.getSize();
+
+        int utf8 = cp.addUtf8Info("notInString");
+        assertEquals(size, utf8);
+        assertEquals(utf8, cp.addUtf8Info("notInString"));
+        int classInfo = cp.addClassInfo("test.NotInString");
+        assertEquals(classInfo, cp.addClassInfo("test.NotInString"));
+        int longInfo = cp.addLongInfo(Long.MAX_VALUE - 1);
+        assertEquals(longInfo, cp.addLongInfo(Long.MAX_VALUE - 1));
+        assertEquals(size + 5, cp.getSize());   // utf8, utf8 + class, long + padding
+    }
+
+    @Test
+    public void addManyTest() throws Exception {
+        ConstPool cp = new ConstPool("test.Many");
+        int[] indexes = new int[5000];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = cp.addIntegerInfo(i);
+        }
+        int size = cp.getSize();
+        for (int i = 0; i < indexes.length; i++) {
+            assertEquals(indexes[i], cp.addIntegerInfo(i));
+        }
+        assertEquals(size, cp.getSize());
+    }
+
+    @Test
+    public void renameClassTest() throws Exception {
+        ClassFile cf = new ClassFile(classBytes("java.lang.String"));
+        ConstPool cp = cf.getConstPool();
+        cp.addUtf8Info("buildsTheIndex");
+
+        cf.renameClass("java.lang.String", "test.Renamed");
+        int size = cp.getSize();
+        assertEquals(cp.getThisClassInfo(), cp.addClassInfo("test.Renamed"));
+        assertEquals(size, cp.getSize());
+        assertNotEquals(cp.getThisClassInfo(), cp.addClassInfo("java.lang.String"));
+    }
+}
@@ -0,0 +1,177 @@
+package org.hotswap.jinjector.javassist.scopedpool;
+
+import org.hotswap.jinjector.javassist.ClassPool;
+import org.hotswap.jinjector.javassist.CtClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Throughput of registerClassLoader() and getCached() across many class loaders, with the registry in
+ * a WeakKeyHashMap compared to the synchronized WeakHashMap used before.
+ *
+ * Not run by the build, run it with: mvn test -Dtest=ScopedClassPoolRepositoryBenchmark
+ */
+public class ScopedClassPoolRepositoryBenchmark {
+
+    private static final int LOADERS = 1500;
+
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    private static final int OPERATIONS = 20000;
+
+    // one in this many operations misses the local caches and walks the registered pools
+    private static final int WALK_EVERY = 16;
+
+    private static final int ROUNDS = 5;
+
+    private static final String MISSING = "no.such.Missing";
+
+    /**
+     * The registry as it was before, all lookups and walks lock the synchronized map.
+     */
+    static class SynchronizedRegistry {
+        final Map<ClassLoader, ScopedClassPool> registeredCLs =
+                Collections.synchronizedMap(new WeakHashMap<ClassLoader, ScopedClassPool>());
+        final ScopedClassPoolRepository repository;
+
+        SynchronizedRegistry(ScopedClassPoolRepository repository) {
+            this.repository = repository;
+        }
+
+        ScopedClassPool registerClassLoader(ClassLoader ucl) {
+            synchronized (registeredCLs) {
+                if (registeredCLs.containsKey(ucl)) {
+                    return registeredCLs.get(ucl);
+                }
+                ScopedClassPool pool = repository.createScopedClassPool(ucl, ClassPool.getDefault());
+                registeredCLs.put(ucl, pool);
+                return pool;
+            }
+        }
+
+        CtClass getCached(ScopedClassPool pool, String classname) {
+            CtClass clazz = pool.getCachedLocally(classname);
+            if (clazz == null) {
+                boolean isLocal = pool.getClassLoader0().getResource(classname.replace('.', '/') + ".class") != null;
+                if (!isLocal) {
+                    clearUnregisteredClassLoaders();
+                    synchronized (registeredCLs) {
+                        for (ScopedClassPool other : registeredCLs.values()) {
+                            if (other.isUnloadedClassLoader()) {
+                                continue;
+                            }
+                            clazz = other.getCachedLocally(classname);
+                            if (clazz != null) {
+                                return clazz;
+                            }
+                        }
+                    }
+                }
+            }
+            return clazz;
+        }
+
+        void clearUnregisteredClassLoaders() {
+            synchronized (registeredCLs) {
+                for (ScopedClassPool pool : registeredCLs.values()) {
+                    pool.isUnloadedClassLoader();
+                }
+            }
+        }
+    }
+
+    interface Operation {
+        void run(ClassLoader loader, boolean walk);
+    }
+
+    private static List<ClassLoader> newLoaders(int count) {
+        List<ClassLoader> loaders = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            loaders.add(new ClassLoader(null) {});
+        }
+        return loaders;
+    }
+
+    private static double measure(List<ClassLoader> loaders, Operation operation) throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(THREADS + 1);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            tasks.add(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                barrier.await();
+                for (int i = 0; i < OPERATIONS; i++) {
+                    operation.run(loaders.get(random.nextInt(loaders.size())), i % WALK_EVERY == 0);
+                }
+                barrier.await();
+                return null;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (Callable<Void> task : tasks) {
+                executor.submit(task);
+            }
+            barrier.await();
+            long start = System.nanoTime();
+            barrier.await();
+            long elapsed = System.nanoTime() - start;
+            return (double) THREADS * OPERATIONS / elapsed * 1e9;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void registryThroughputTest() throws Exception {
+        ScopedClassPoolRepository repository = ScopedClassPoolRepositoryImpl.getInstance();
+        int registered = repository.getRegisteredCLs().size();
+        List<ClassLoader> loaders = newLoaders(LOADERS);
+        SynchronizedRegistry synchronizedRegistry = new SynchronizedRegistry(repository);
+        for (ClassLoader loader : loaders) {
+            repository.registerClassLoader(loader);
+            synchronizedRegistry.registerClassLoader(loader);
+        }
+        assertEquals(registered + LOADERS, repository.getRegisteredCLs().size());
+
+        Operation concurrent = (loader, walk) -> {
+            ScopedClassPool pool = (ScopedClassPool) repository.registerClassLoader(loader);
+            if (walk) {
+                assertNull(pool.getCached(MISSING));
+            }
+        };
+        Operation synchronizedMap = (loader, walk) -> {
+            ScopedClassPool pool = synchronizedRegistry.registerClassLoader(loader);
+            if (walk) {
+                assertNull(synchronizedRegistry.getCached(pool, MISSING));
+            }
+        };
+
+        try {
+            System.out.printf("%d loaders, %d threads, a walk every %d operations%n", LOADERS, THREADS, WALK_EVERY);
+            for (int round = 0; round < ROUNDS; round++) {
+                // the first rounds are the warm-up
+                double synchronizedOps = measure(loaders, synchronizedMap);
+                double concurrentOps = measure(loaders, concurrent);
+                System.out.printf("round %d: synchronized WeakHashMap %,.0f ops/s, WeakKeyHashMap %,.0f ops/s (%.1fx)%n",
+                        round, synchronizedOps, concurrentOps, concurrentOps / synchronizedOps);
+            }
+        } finally {
+            for (ClassLoader loader : loaders) {
+                repository.unregisterClassLoader(loader);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.hotswap.jinjector.javassist.scopedpool;
+
+import org.hotswap.jinjector.javassist.ClassPool;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScopedClassPoolRepositoryTest {
+
+    private static final int LOADERS = 1500;
+
+    private static final int GC_ATTEMPTS = 20;
+
+    private static List<ClassLoader> newLoaders(int count) {
+        List<ClassLoader> loaders = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            loaders.add(new ClassLoader(null) {});
+        }
+        return loaders;
+    }
+
+    // no local variable of the caller keeps the loaders reachable
+    private static void registerLoaders(ScopedClassPoolRepository repository, int count) {
+        for (ClassLoader loader : newLoaders(count)) {
+            repository.registerClassLoader(loader);
+        }
+    }
+
+    private static boolean drained(Map<?, ?> map, int size) throws Exception {
+        for (int i = 0; i < GC_ATTEMPTS; i++) {
+            if (map.size() <= size) {
+                return true;
+            }
+            System.gc();
+            Thread.sleep(50);
+        }
+        return map.size() <= size;
+    }
+
+    @Test
+    public void unregisterTest() throws Exception {
+        ScopedClassPoolRepository repository = ScopedClassPoolRepositoryImpl.getInstance();
+        Map<ClassLoader, ScopedClassPool> registered = repository.getRegisteredCLs();
+        int size = registered.size();
+
+        List<ClassLoader> loaders = newLoaders(LOADERS);
+        for (ClassLoader loader : loaders) {
+            ClassPool pool = repository.registerClassLoader(loader);
+            assertNotNull(pool);
+            assertSame(pool, repository.registerClassLoader(loader));
+        }
+        assertEquals(size + LOADERS, registered.size());
+
+        for (ClassLoader loader : loaders) {
+            repository.unregisterClassLoader(loader);
+        }
+        assertEquals(size, registered.size());
+    }
+
+    @Test
+    public void collectedLoaderTest() throws Exception {
+        ScopedClassPoolRepository repository = ScopedClassPoolRepositoryImpl.getInstance();
+        Map<ClassLoader, ScopedClassPool> registered = repository.getRegisteredCLs();
+        int size = registered.size();
+
+        registerLoaders(repository, LOADERS);
+        assertEquals(size + LOADERS, registered.size());
+
+        // the pools must not keep their class loaders reachable
+        assertTrue(drained(registered, size));
+    }
+
+    @Test
+    public void weakKeyHashMapTest() throws Exception {
+        Map<Object, String> map = new WeakKeyHashMap<>();
+        Object held = new Object();
+        map.put(held, "held");
+        for (int i = 0; i < LOADERS; i++) {
+            map.put(new Object(), "v" + i);
+        }
+        assertEquals("held", map.get(held));
+        assertNull(map.get(new Object()));
+
+        assertTrue(drained(map, 1));
+        assertEquals("held", map.get(held));
+        assertEquals(1, map.values().size());
+
+        map.remove(held);
+        assertTrue(drained(map, 0));
+        assertTrue(map.isEmpty());
+        assertTrue(map.values().isEmpty());
+    }
+}